@@ -16,6 +16,7 @@ package com.distimo.sdk;
  *  limitations under the License.
  */
 
+import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -24,8 +25,8 @@ import android.app.Activity;
 import android.content.Intent;
 import android.content.pm.ResolveInfo;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Build;
+import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
@@ -54,8 +55,10 @@ final class AppLinkManager {
 			
 			redirecting = true;
 
-			AppLinkTask task = new AppLinkTask();
-			task.execute(builder.toString());
+			if (!NetworkExecutor.execute(new AppLinkTask(builder.toString()))) {
+				//Could not start the request, open the AppLink URL directly
+				AppLinkManager.showAppLink(builder.toString());
+			}
 		}
 	}
 	
@@ -124,66 +127,80 @@ final class AppLinkManager {
 		return false;
 	}
 	
-	private static final class AppLinkTask extends AsyncTask<String, String, Boolean> {
+	private static final class AppLinkTask implements Runnable {
 		
 		private String applinkUrl;
 		private String marketUrl;
 		
-		@Override
-		protected void onPreExecute() {
-			super.onPreExecute();
+		AppLinkTask(String applinkUrl) {
+			this.applinkUrl = applinkUrl;
+		}
+		
+		public void run() {
+			final boolean result = this.resolve();
+			
+			//Continue on the UI thread
+			new Handler(Looper.getMainLooper()).post(new Runnable() {
+				public void run() {
+					AppLinkTask.this.onResolved(result);
+				}
+			});
 		}
 		
-		@Override
-	    protected Boolean doInBackground(String... uri) {
-			if (Utils.DEBUG) { Log.i("AppLinkTask", "doInBackground()"); }
+	    private boolean resolve() {
+			if (Utils.DEBUG) { Log.i("AppLinkTask", "resolve()"); }
 			
-			Boolean result = false;
+			boolean result = false;
 			
 			// HTTP connection reuse which was buggy before FROYO
 			if (Build.VERSION.SDK_INT < 8) { //Build.VERSION_CODES.FROYO
 		        System.setProperty("http.keepAlive", "false");
 		    }
 			
-			if (uri != null) {
-				this.applinkUrl = uri[0];
-				
+			if (this.applinkUrl != null) {
 				if (Utils.DEBUG) { Log.i("AppLinkTask", "Calling: " + this.applinkUrl); }
 				
-				HttpURLConnection urlConnection = null;
+				final String applinkUrl = this.applinkUrl;
 				try {
-					URL url = new URL(this.applinkUrl);
-					urlConnection = (HttpURLConnection) url.openConnection();
-					urlConnection.setInstanceFollowRedirects(false);
-					urlConnection.setRequestMethod("GET");
-					urlConnection.connect();
-					
-					if (urlConnection.getResponseCode() == HttpURLConnection.HTTP_MOVED_TEMP) { //302
-						this.marketUrl = urlConnection.getHeaderField("Location");
-						if (this.marketUrl != null) {
-							result = true;
+					//With connect, read and total timeouts, so the user doesn't wait on a stalled connection
+					this.marketUrl = HttpTransport.execute(new HttpTransport.Request<String>() {
+						public String execute(HttpTransport.Call call) throws IOException {
+							HttpURLConnection urlConnection = null;
+							try {
+								URL url = new URL(applinkUrl);
+								urlConnection = call.open(url);
+								urlConnection.setInstanceFollowRedirects(false);
+								urlConnection.setRequestMethod("GET");
+								urlConnection.connect();
+								
+								if (urlConnection.getResponseCode() == HttpURLConnection.HTTP_MOVED_TEMP) { //302
+									return urlConnection.getHeaderField("Location");
+								}
+								return null;
+							} finally {
+								if (urlConnection != null) {
+									urlConnection.disconnect();
+								}
+							}
 						}
+					}, false);
+					
+					if (this.marketUrl != null) {
+						result = true;
 					}
 				} catch (final MalformedURLException mue) {
 					if (Utils.DEBUG) { Log.e("AppLinkTask", "Malformed URL: " + this.applinkUrl); }
 				} catch (final Throwable t) {
 					if (Utils.DEBUG) { t.printStackTrace(); }
-				} finally {
-					if (urlConnection != null) {
-						urlConnection.disconnect();
-					}
 				}
 			}
 			
 			return result;
 	    }
 		
-	    @Override
-	    protected void onPostExecute(Boolean result) {
-	    	if (Utils.DEBUG) { Log.i("AppLinkTask", "onPostExecute()"); }
+	    private void onResolved(boolean result) {
+	    	if (Utils.DEBUG) { Log.i("AppLinkTask", "onResolved()"); }
 			
-	        super.onPostExecute(result);
-	        
 	        if (result == true) {
 	        	if (Utils.DEBUG) { Log.i("AppLinkTask", "302 received, opening Market URL"); }
 	        	
@@ -71,6 +71,11 @@ public class CDVDistimoSDK extends CordovaPlugin {
 		return false;
 	}
 	
+	@Override
+	public void onDestroy() {
+		DistimoSDK.onDestroy();
+	}
+	
 	private void start(String sdkKey, CallbackContext callbackContext) {
 		if (sdkKey != null && sdkKey.length() > 0) {
 			DistimoSDK.onCreate(cordova.getActivity(), sdkKey);
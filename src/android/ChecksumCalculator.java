@@ -0,0 +1,128 @@
+package com.distimo.sdk;
+
+/**
+ *  Copyright (c) 2012 Distimo. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.distimo.sdk.EventManager.Event;
+
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Calculates the checksums of restored events on a small pool of worker threads,
+ *  e.g. for a backlog of events that was stored without checksums
+ */
+final class ChecksumCalculator {
+	
+	private final static String TAG					= "ChecksumCalculator";
+	
+	private final static int MAX_THREADS			= 4;
+	private final static int MIN_EVENTS_PER_TASK	= 16;
+	private final static long KEEP_ALIVE			= 5;
+	
+	private static ThreadPoolExecutor executor;
+	
+	/**
+	 * Private constructor to prevent instantiation
+	 */
+	private ChecksumCalculator() { }
+	
+	/**
+	 * Calculates the missing checksums of the events, and returns when all are calculated.
+	 *  The order of the events is not changed.
+	 */
+	static void calculate(List<Event> events) {
+		final ArrayList<Event> missing = new ArrayList<Event>();
+		for (Event event : events) {
+			if (!event.hasChecksum()) {
+				missing.add(event);
+			}
+		}
+		
+		final int threads = Math.min(MAX_THREADS, Math.min(Runtime.getRuntime().availableProcessors(), missing.size() / MIN_EVENTS_PER_TASK));
+		
+		if (threads > 1) {
+			if (Utils.DEBUG) { Log.i(TAG, "calculate(" + missing.size() + ") on " + threads + " threads"); }
+			
+			final ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>(threads);
+			final int taskSize = (missing.size() + threads - 1) / threads;
+			
+			for (int start = 0; start < missing.size(); start += taskSize) {
+				final List<Event> slice = missing.subList(start, Math.min(start + taskSize, missing.size()));
+				tasks.add(new Callable<Void>() {
+					public Void call() {
+						for (Event event : slice) {
+							event.getChecksum();
+						}
+						return null;
+					}
+				});
+			}
+			
+			try {
+				getExecutor().invokeAll(tasks);
+			} catch (final InterruptedException ie) {
+				if (Utils.DEBUG) { ie.printStackTrace(); }
+				Thread.currentThread().interrupt();
+			} catch (final RuntimeException re) {
+				//Fall through, the remaining checksums are calculated below
+				if (Utils.DEBUG) { re.printStackTrace(); }
+			}
+		}
+		
+		//Serially for a few events, or whatever the workers did not calculate
+		for (Event event : missing) {
+			event.getChecksum();
+		}
+	}
+	
+	private static synchronized ThreadPoolExecutor getExecutor() {
+		if (executor == null) {
+			final ThreadFactory threadFactory = new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger(1);
+				
+				public Thread newThread(final Runnable r) {
+					return new Thread(new Runnable() {
+						public void run() {
+							Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+							r.run();
+						}
+					}, "DistimoSDK checksum #" + count.getAndIncrement());
+				}
+			};
+			
+			executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, KEEP_ALIVE, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), threadFactory);
+			
+			if (Build.VERSION.SDK_INT >= 9) { //Build.VERSION_CODES.GINGERBREAD
+				//The workers are only needed while a backlog is restored
+				executor.allowCoreThreadTimeOut(true);
+			}
+		}
+		
+		return executor;
+	}
+}
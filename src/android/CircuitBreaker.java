@@ -0,0 +1,176 @@
+package com.distimo.sdk;
+
+/**
+ *  Copyright (c) 2012 Distimo. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Circuit breaker for the collector. After a number of consecutive failures the circuit
+ *  opens and no requests are sent during the cool-off. Then a single probe request is
+ *  allowed (half-open): if it succeeds the circuit closes, otherwise it opens again with
+ *  a doubled cool-off. The state is stored in the SharedPreferences, so restarting the
+ *  application does not reset it.
+ *
+ * Not thread safe, only used from the EventManager's eventHandler thread.
+ */
+final class CircuitBreaker {
+	
+	private final static String TAG							= "CircuitBreaker";
+	
+	private final static String PREFERENCES_FILE_NAME		= "MDFRquC1VGBkUD7KaQgg";
+	private final static String PREFERENCES_STATE			= "083r4Krv7qu86pwHx9Mv";
+	private final static String PREFERENCES_FAILURES		= "Vl2SNVavxg1OJX3HJEOt";
+	private final static String PREFERENCES_OPEN_UNTIL		= "OtqyGYn61H8AQ5YFfaAc";
+	private final static String PREFERENCES_COOL_OFF		= "rYEAltSkPoWS98snUUsK";
+	
+	private final static int STATE_CLOSED					= 0;
+	private final static int STATE_OPEN						= 1;
+	private final static int STATE_HALF_OPEN				= 2;
+	
+	private final static int FAILURE_THRESHOLD				= 5;
+	private final static long INITIAL_COOL_OFF				= 5 * 60 * 1000;
+	private final static long MAX_COOL_OFF					= 60 * 60 * 1000;
+	
+	private final SharedPreferences preferences;
+	
+	private int state;
+	private int failures;
+	private long openUntil;
+	private long coolOff;
+	private boolean probeInFlight							= false;
+	
+	CircuitBreaker(Context context) {
+		this.preferences = context.getSharedPreferences(PREFERENCES_FILE_NAME, Context.MODE_PRIVATE);
+		
+		this.state = this.preferences.getInt(PREFERENCES_STATE, STATE_CLOSED);
+		this.failures = this.preferences.getInt(PREFERENCES_FAILURES, 0);
+		this.openUntil = this.preferences.getLong(PREFERENCES_OPEN_UNTIL, 0);
+		this.coolOff = Math.max(INITIAL_COOL_OFF, Math.min(this.preferences.getLong(PREFERENCES_COOL_OFF, INITIAL_COOL_OFF), MAX_COOL_OFF));
+		
+		if (this.state == STATE_HALF_OPEN) {
+			//The probe was lost with the previous process, send a new one
+			this.state = STATE_OPEN;
+			this.openUntil = 0;
+		}
+		
+		if (Utils.DEBUG) { Log.i(TAG, "CircuitBreaker state " + this.state + ", " + this.failures + " failure(s)"); }
+	}
+	
+	/**
+	 * @return true if a request may be sent now, call onRequestSent() once it is sent
+	 */
+	boolean allowRequest(long now) {
+		switch (this.state) {
+			case STATE_OPEN:
+				return this.getRemainingCoolOff(now) == 0;
+			case STATE_HALF_OPEN:
+				return !this.probeInFlight;
+			default:
+				return true;
+		}
+	}
+	
+	/**
+	 * A request was sent, after the cool-off this request is the probe
+	 */
+	void onRequestSent(long now) {
+		if (this.state == STATE_OPEN && this.getRemainingCoolOff(now) == 0) {
+			if (Utils.DEBUG) { Log.i(TAG, "Half-open, probing the collector"); }
+			
+			this.state = STATE_HALF_OPEN;
+			this.store();
+		}
+		
+		if (this.state == STATE_HALF_OPEN) {
+			this.probeInFlight = true;
+		}
+	}
+	
+	/**
+	 * The collector answered, closes the circuit
+	 */
+	void onSuccess() {
+		this.probeInFlight = false;
+		
+		if (this.state != STATE_CLOSED || this.failures > 0) {
+			if (Utils.DEBUG && this.state != STATE_CLOSED) { Log.i(TAG, "Closed"); }
+			
+			this.state = STATE_CLOSED;
+			this.failures = 0;
+			this.coolOff = INITIAL_COOL_OFF;
+			this.store();
+		}
+	}
+	
+	/**
+	 * The collector could not be reached or is unavailable, opens the circuit after
+	 *  FAILURE_THRESHOLD consecutive failures or a failed probe
+	 */
+	void onFailure(long now) {
+		if (this.state == STATE_HALF_OPEN) {
+			//The probe failed, wait longer
+			this.probeInFlight = false;
+			this.coolOff = Math.min(this.coolOff * 2, MAX_COOL_OFF);
+			this.open(now);
+		} else if (this.state == STATE_CLOSED) {
+			this.failures++;
+			
+			if (this.failures >= FAILURE_THRESHOLD) {
+				this.open(now);
+			} else {
+				this.store();
+			}
+		}
+		
+		//Requests that were sent before the circuit opened don't extend the cool-off
+	}
+	
+	/**
+	 * @return the time in milliseconds until a probe may be sent, 0 if requests are allowed
+	 */
+	long getRemainingCoolOff(long now) {
+		if (this.state != STATE_OPEN) {
+			return 0;
+		}
+		
+		//The wall clock was set back, don't wait longer than the cool-off
+		if (this.openUntil - now > this.coolOff) {
+			this.openUntil = now + this.coolOff;
+		}
+		
+		return Math.max(0, this.openUntil - now);
+	}
+	
+	private void open(long now) {
+		if (Utils.DEBUG) { Log.w(TAG, "Open for " + this.coolOff + "ms after " + this.failures + " failure(s)"); }
+		
+		this.state = STATE_OPEN;
+		this.openUntil = now + this.coolOff;
+		this.store();
+	}
+	
+	private void store() {
+		this.preferences.edit()
+			.putInt(PREFERENCES_STATE, this.state)
+			.putInt(PREFERENCES_FAILURES, this.failures)
+			.putLong(PREFERENCES_OPEN_UNTIL, this.openUntil)
+			.putLong(PREFERENCES_COOL_OFF, this.coolOff)
+			.commit();
+	}
+}
@@ -45,6 +45,21 @@ public final class DistimoSDK {
     private final static String PREFERENCES_USER_ID				= "mjaEKufRe6vNtt8PsciU";
     
 	private final static long FIRSTLAUNCH_DELAY					= 30000; 
+	
+	/**
+	 * Store queued events with the default SQLite settings
+	 */
+	public final static int STORAGE_DEFAULT						= 0;
+	
+	/**
+	 * Store queued events in SQLite with write-ahead logging and memory-mapped I/O
+	 */
+	public final static int STORAGE_WAL							= 1;
+	
+	/**
+	 * Store queued events in an append-only log of segment files
+	 */
+	public final static int STORAGE_LOG							= 2;
     
 	private static Handler firstLaunchHandler;
 	private static Runnable firstLaunchRunnable;
@@ -108,8 +123,10 @@ public final class DistimoSDK {
 				//Initialize the EventManager
 				EventManager.initialize(context);
 				
-				//Set exception handler (will preserve the current exception handler)
-				Thread.setDefaultUncaughtExceptionHandler(new DistimoExceptionHandler(context));
+				//Set exception handler (will preserve the current exception handler), once after a restart
+				if (!(Thread.getDefaultUncaughtExceptionHandler() instanceof DistimoExceptionHandler)) {
+					Thread.setDefaultUncaughtExceptionHandler(new DistimoExceptionHandler(context));
+				}
 				
 				//Check (delayed) if a FirstLaunch event needs to be sent
 				checkFirstLaunchDelayed(context);
@@ -117,6 +134,119 @@ public final class DistimoSDK {
 		}
 	}
 	
+	/**
+	 * Stop the SDK. Typically call this method from the onDestroy() method of your main Activity.
+	 *  Queued events are stored and sent after the next onCreate(..), events logged in between are ignored.
+	 */
+	public static void onDestroy() {
+		if (started) {
+			if (Utils.DEBUG) { Log.i(TAG, "onDestroy()"); }
+			
+			started = false;
+			
+			//Stop the delayed check, it is started again by onCreate(..)
+			if (firstLaunchHandler != null && firstLaunchRunnable != null) {
+				firstLaunchHandler.removeCallbacks(firstLaunchRunnable);
+				firstLaunchHandler = null;
+				firstLaunchRunnable = null;
+			}
+			
+			EventManager.shutdown();
+		}
+	}
+	
+	//-- CONFIGURATION --//
+	
+	/**
+	 * Combine queued events into a single request. Use this when many events are queued, e.g.
+	 *  after a period without connectivity. Batching is disabled by default.
+	 *
+	 * @param maxEvents The maximum number of events per request, 1 disables batching
+	 * @param maxBytes The maximum size of the request body in bytes
+	 */
+	public static void setEventBatching(int maxEvents, int maxBytes) {
+		EventManager.setBatchLimits(maxEvents, maxBytes);
+	}
+	
+	/**
+	 * Set the number of requests that may be in flight at the same time while sending queued
+	 *  events. A larger window drains a large queue faster on high-latency connections.
+	 *
+	 * @param maxRequests The maximum number of concurrent requests, 1 (the default) sends one request at a time
+	 */
+	public static void setEventWindowSize(int maxRequests) {
+		EventManager.setWindowSize(maxRequests);
+	}
+	
+	/**
+	 * Set the maximum time that a logged event waits before it is stored. Events that are logged
+	 *  within this time, e.g. during a purchase flow, are stored in a single transaction.
+	 *
+	 * @param maxLatency The maximum latency in milliseconds, 0 (the default) stores each burst as soon as possible
+	 */
+	public static void setEventCommitLatency(long maxLatency) {
+		EventManager.setCommitLatency(maxLatency);
+	}
+	
+	/**
+	 * Set how queued events are stored. Call this method before onCreate(..).
+	 *
+	 * @param storage One of the STORAGE_* values, the default is STORAGE_DEFAULT
+	 */
+	public static void setEventStorage(int storage) {
+		EventManager.setStorageMode(storage);
+	}
+	
+	/**
+	 * Set how often the collector may reject an event before it is dropped. Rejected events are
+	 *  retried with an increasing delay, while the other events keep being sent.
+	 *
+	 * @param maxAttempts The maximum number of attempts, the default is 10
+	 */
+	public static void setMaxEventAttempts(int maxAttempts) {
+		EventManager.setMaxAttempts(maxAttempts);
+	}
+	
+	/**
+	 * Set the granularity of the timer that retries rejected events. Call this method before onCreate(..).
+	 *
+	 * @param tick The tick in milliseconds, the default is 500
+	 */
+	public static void setEventRetryTick(long tick) {
+		EventManager.setRetryTick(tick);
+	}
+	
+	/**
+	 * Set the timeouts of the network requests of the SDK, in milliseconds
+	 *
+	 * @param connectTimeout The timeout to establish a connection, the default is 15000
+	 * @param readTimeout The timeout to wait for data, the default is 30000
+	 * @param totalTimeout The timeout of a complete request, the default is 60000
+	 */
+	public static void setNetworkTimeouts(int connectTimeout, int readTimeout, long totalTimeout) {
+		HttpTransport.setTimeouts(connectTimeout, readTimeout, totalTimeout);
+	}
+	
+	/**
+	 * Send a second request when the collector responds slower than usual, and use the first
+	 *  response. This reduces the delivery latency on flaky networks, but an event may be
+	 *  delivered twice.
+	 *
+	 * @param enabled true to enable hedged requests, the default is false
+	 */
+	public static void setEventHedging(boolean enabled) {
+		EventManager.setHedging(enabled);
+	}
+	
+	/**
+	 * Set the priority of the threads that perform the network requests of the SDK
+	 *
+	 * @param priority One of the android.os.Process.THREAD_PRIORITY_* values, the default is THREAD_PRIORITY_BACKGROUND
+	 */
+	public static void setNetworkThreadPriority(int priority) {
+		NetworkExecutor.setThreadPriority(priority);
+	}
+	
 	//-- USER VALUE --//
 	
 	/**
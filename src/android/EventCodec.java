@@ -0,0 +1,178 @@
+package com.distimo.sdk;
+
+/**
+ *  Copyright (c) 2012 Distimo. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.distimo.sdk.EventManager.Event;
+
+/**
+ * Compact binary encoding of events, used by the stores that don't keep events in columns
+ */
+final class EventCodec {
+	
+	private final static int VERSION				= 4;
+	
+	/**
+	 * Private constructor to prevent instantiation
+	 */
+	private EventCodec() { }
+	
+	// -- Events -- //
+	
+	/**
+	 * Encodes the event, the encoding starts with a version byte followed by the event ID.
+	 * Version 2 adds the checksum, version 3 the lane after the ID, version 4 the identity of the checksum.
+	 */
+	static byte[] encode(Event event) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		
+		out.writeByte(VERSION);
+		out.writeLong(event.id);
+		out.writeByte(event.lane);
+		writeString(out, event.name);
+		out.writeLong(event.timestamp);
+		writeString(out, event.bundleID);
+		writeString(out, event.appVersion);
+		writeString(out, event.sdkVersion);
+		writeString(out, event.postData);
+		writeParams(out, event.params);
+		writeString(out, event.getChecksum());
+		writeString(out, event.getChecksumIdentity());
+		out.close();
+		
+		return bytes.toByteArray();
+	}
+	
+	static Event decode(byte[] data, int offset, int length) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+		
+		final int version = in.readUnsignedByte();
+		if (version < 1 || version > VERSION) {
+			throw new IOException("Unknown event encoding " + version);
+		}
+		
+		final long id = in.readLong();
+		final int lane = (version >= 3 ? in.readUnsignedByte() : -1);
+		final String name = readString(in);
+		final long timestamp = in.readLong();
+		final String bundleID = readString(in);
+		final String appVersion = readString(in);
+		final String sdkVersion = readString(in);
+		final String postData = readString(in);
+		final Map<String, String> params = readParams(in);
+		
+		//Version 1 has no checksum, it is calculated again when needed
+		final String checksum = (version >= 2 ? readString(in) : null);
+		
+		//Before version 4 it is unknown which SDK key and IDs the checksum was calculated with, so it is calculated again
+		final String checksumIdentity = (version >= 4 ? readString(in) : null);
+		
+		//Without a stored lane the Event picks the lane of its name
+		return new Event(id, lane, name, params, postData, timestamp, bundleID, appVersion, sdkVersion, checksum, checksumIdentity);
+	}
+	
+	// -- Parameters -- //
+	
+	/**
+	 * Encodes the parameters on their own, e.g. for a database column
+	 *
+	 * @return the encoded parameters, or null if params is null
+	 */
+	static byte[] encodeParams(Map<String, String> params) throws IOException {
+		if (params == null) {
+			return null;
+		}
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		writeParams(out, params);
+		out.close();
+		
+		return bytes.toByteArray();
+	}
+	
+	static Map<String, String> decodeParams(byte[] data) throws IOException {
+		return readParams(new DataInputStream(new ByteArrayInputStream(data)));
+	}
+	
+	static void writeParams(DataOutput out, Map<String, String> params) throws IOException {
+		if (params == null) {
+			out.writeInt(-1);
+			return;
+		}
+		
+		out.writeInt(params.size());
+		for (Map.Entry<String, String> entry : params.entrySet()) {
+			writeString(out, entry.getKey());
+			writeString(out, entry.getValue());
+		}
+	}
+	
+	static Map<String, String> readParams(DataInput in) throws IOException {
+		final int size = in.readInt();
+		if (size < 0) {
+			return null;
+		}
+		
+		//Keep the encoded order, the stored checksum was calculated in that order
+		Map<String, String> params = new LinkedHashMap<String, String>();
+		for (int i = 0; i < size; i++) {
+			final String key = readString(in);
+			params.put(key, readString(in));
+		}
+		
+		return params;
+	}
+	
+	// -- Strings -- //
+	
+	/**
+	 * Writes the length followed by the UTF-8 bytes, unlike writeUTF(..) this has no 64KB limit
+	 */
+	private static void writeString(DataOutput out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		
+		final byte[] data = s.getBytes("UTF-8");
+		out.writeInt(data.length);
+		out.write(data);
+	}
+	
+	private static String readString(DataInput in) throws IOException {
+		final int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		
+		final byte[] data = new byte[length];
+		in.readFully(data);
+		
+		return new String(data, "UTF-8");
+	}
+}
@@ -0,0 +1,554 @@
+package com.distimo.sdk;
+
+/**
+ *  Copyright (c) 2012 Distimo. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import com.distimo.sdk.EventManager.Event;
+
+import android.util.Log;
+
+/**
+ * Append-only event store that writes length-prefixed, CRC-checked records to segment files.
+ * Removed events are recorded as tombstones, a segment file is deleted once all its
+ *  events are removed and all older segments are gone. Dead events are appended to a
+ *  separate file that is not replayed.
+ *
+ * Record layout: [int length][int crc32][byte type][payload], where length and crc32 cover
+ *  the type and the payload.
+ */
+final class EventLog implements EventStore {
+	
+	private final static String TAG					= "EventLog";
+	
+	static final String DIRECTORY_NAME					= "p7QfZcN2kRw0LbTyHs4E";
+	private final static String SEGMENT_SUFFIX			= ".seg";
+	private final static long SEGMENT_SIZE				= 256 * 1024;
+	private final static int HEADER_SIZE				= 8;
+	private final static String DEAD_FILE_NAME			= "dead";
+	private final static long DEAD_FILE_SIZE			= 64 * 1024;
+	
+	private final static byte RECORD_EVENT				= 1;
+	private final static byte RECORD_REMOVE				= 2;
+	private final static byte RECORD_REMOVE_RANGE		= 3;
+	private final static byte RECORD_REMOVE_LANE_RANGE	= 4;
+	private final static byte RECORD_RETRY				= 5;
+	
+	private final File directory;
+	private final ArrayList<Segment> segments			= new ArrayList<Segment>();
+	private final TreeMap<Long, Location> index			= new TreeMap<Long, Location>();
+	private final ArrayList<TreeMap<Long, Location>> laneIndexes = new ArrayList<TreeMap<Long, Location>>();
+	private long nextID									= 1;
+	
+	EventLog(File directory) throws IOException {
+		this.directory = directory;
+		
+		for (int i = 0; i < EventManager.LANES; i++) {
+			this.laneIndexes.add(new TreeMap<Long, Location>());
+		}
+		
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create " + directory);
+		}
+		
+		this.load();
+	}
+	
+	// -- EventStore -- //
+	
+	public boolean storeEvents(List<Event> events) {
+		if (Utils.DEBUG) { Log.i(TAG, "storeEvents(" + events.size() + ")"); }
+		
+		final long[] previousIDs = new long[events.size()];
+		final int[] offsets = new int[events.size()];
+		final int[] lengths = new int[events.size()];
+		
+		try {
+			ByteArrayOutputStream records = new ByteArrayOutputStream();
+			
+			long id = this.nextID;
+			for (int i = 0; i < events.size(); i++) {
+				Event event = events.get(i);
+				previousIDs[i] = event.id;
+				event.setId(id++);
+				
+				byte[] payload = EventCodec.encode(event);
+				offsets[i] = records.size() + HEADER_SIZE + 1;
+				lengths[i] = payload.length;
+				writeRecord(records, RECORD_EVENT, payload);
+			}
+			
+			final Segment segment = this.append(records.toByteArray());
+			
+			for (int i = 0; i < events.size(); i++) {
+				final Event event = events.get(i);
+				this.put(event.id, new Location(segment, event.lane, segment.size - records.size() + offsets[i], lengths[i]));
+			}
+			this.nextID = id;
+			
+			return true;
+		} catch (final IOException ioe) {
+			if (Utils.DEBUG) { ioe.printStackTrace(); }
+			
+			//Restore the IDs of the events that were not stored
+			for (int i = 0; i < events.size(); i++) {
+				events.get(i).setId(previousIDs[i]);
+			}
+			
+			return false;
+		}
+	}
+	
+	public boolean removeEvents(List<Event> events, int lane, long maxID) {
+		if (Utils.DEBUG) { Log.i(TAG, "removeEvents(" + events.size() + ", " + lane + ", " + maxID + ")"); }
+		
+		try {
+			ByteArrayOutputStream records = new ByteArrayOutputStream();
+			
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream payload = new DataOutputStream(bytes);
+			if (maxID != -1 && lane != ALL_LANES) {
+				payload.writeByte(lane);
+				payload.writeLong(maxID);
+				writeRecord(records, RECORD_REMOVE_LANE_RANGE, bytes.toByteArray());
+			} else if (maxID != -1) {
+				payload.writeLong(maxID);
+				writeRecord(records, RECORD_REMOVE_RANGE, bytes.toByteArray());
+			} else {
+				payload.writeInt(events.size());
+				for (Event event : events) {
+					payload.writeLong(event.id);
+				}
+				writeRecord(records, RECORD_REMOVE, bytes.toByteArray());
+			}
+			
+			this.append(records.toByteArray());
+		} catch (final IOException ioe) {
+			if (Utils.DEBUG) { ioe.printStackTrace(); }
+			return false;
+		}
+		
+		if (maxID != -1) {
+			this.removeRange(lane, maxID);
+		} else {
+			for (Event event : events) {
+				this.remove(event.id);
+			}
+		}
+		
+		this.compact();
+		
+		return true;
+	}
+	
+	public ArrayList<Event> getEvents(int lane, long afterID, int limit) {
+		if (Utils.DEBUG) { Log.i(TAG, "getEvents(" + lane + ", " + afterID + ", " + limit + ")"); }
+		
+		ArrayList<Event> events = new ArrayList<Event>();
+		
+		final TreeMap<Long, Location> locations = (lane != ALL_LANES ? this.laneIndexes.get(lane) : this.index);
+		for (Map.Entry<Long, Location> entry : locations.tailMap(afterID + 1).entrySet()) {
+			if (events.size() >= limit) {
+				break;
+			}
+			
+			final Location location = entry.getValue();
+			try {
+				byte[] data = new byte[location.length];
+				location.segment.read(data, location.offset);
+				
+				Event event = EventCodec.decode(data, 0, data.length);
+				event.setRetryState(location.attempts, location.nextAttemptTime);
+				events.add(event);
+			} catch (final IOException ioe) {
+				//Skip the unreadable event
+				if (Utils.DEBUG) { ioe.printStackTrace(); }
+			}
+		}
+		
+		return events;
+	}
+	
+	public boolean updateRetryState(List<Event> events) {
+		if (Utils.DEBUG) { Log.i(TAG, "updateRetryState(" + events.size() + ")"); }
+		
+		try {
+			ByteArrayOutputStream records = new ByteArrayOutputStream();
+			
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream payload = new DataOutputStream(bytes);
+			payload.writeInt(events.size());
+			for (Event event : events) {
+				payload.writeLong(event.id);
+				payload.writeInt(event.attempts);
+				payload.writeLong(event.nextAttemptTime);
+			}
+			writeRecord(records, RECORD_RETRY, bytes.toByteArray());
+			
+			this.append(records.toByteArray());
+		} catch (final IOException ioe) {
+			if (Utils.DEBUG) { ioe.printStackTrace(); }
+			return false;
+		}
+		
+		for (Event event : events) {
+			this.retry(event.id, event.attempts, event.nextAttemptTime);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Appends the events to the dead file, which starts over once it exceeds DEAD_FILE_SIZE,
+	 *  and removes them from the log
+	 */
+	public boolean deadLetterEvents(List<Event> events) {
+		if (Utils.DEBUG) { Log.i(TAG, "deadLetterEvents(" + events.size() + ")"); }
+		
+		boolean result = false;
+		
+		try {
+			ByteArrayOutputStream records = new ByteArrayOutputStream();
+			for (Event event : events) {
+				writeRecord(records, RECORD_EVENT, EventCodec.encode(event));
+			}
+			
+			Segment dead = new Segment(new File(this.directory, DEAD_FILE_NAME));
+			try {
+				if (dead.size > DEAD_FILE_SIZE) {
+					dead.channel.truncate(0);
+					dead.size = 0;
+				}
+				dead.write(records.toByteArray());
+				result = true;
+			} finally {
+				dead.close();
+			}
+		} catch (final IOException ioe) {
+			if (Utils.DEBUG) { ioe.printStackTrace(); }
+		}
+		
+		//Remove the events from the log, also when they could not be kept
+		return this.removeEvents(events, ALL_LANES, -1) && result;
+	}
+	
+	public void close() {
+		if (Utils.DEBUG) { Log.i(TAG, "close()"); }
+		
+		for (Segment segment : this.segments) {
+			segment.close();
+		}
+		this.segments.clear();
+		this.index.clear();
+		for (TreeMap<Long, Location> laneIndex : this.laneIndexes) {
+			laneIndex.clear();
+		}
+	}
+	
+	/**
+	 * Deletes the segment files, the dead file and the directory of a closed log
+	 */
+	static void delete(File directory) {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+	
+	// -- Segments -- //
+	
+	private void load() throws IOException {
+		File[] files = this.directory.listFiles();
+		if (files != null) {
+			//Segment names are zero-padded first IDs, so they sort in log order
+			Arrays.sort(files);
+			
+			for (File file : files) {
+				if (file.getName().endsWith(SEGMENT_SUFFIX)) {
+					Segment segment = new Segment(file);
+					this.segments.add(segment);
+					this.scan(segment);
+					
+					//IDs never go below the name of a segment, even when all its events were removed
+					try {
+						final String name = file.getName();
+						this.nextID = Math.max(this.nextID, Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+					} catch (final NumberFormatException nfe) {
+						if (Utils.DEBUG) { Log.w(TAG, "Unexpected segment name " + file.getName()); }
+					}
+				}
+			}
+		}
+		
+		if (Utils.DEBUG) { Log.i(TAG, "Loaded " + this.index.size() + " event(s) from " + this.segments.size() + " segment(s)"); }
+		
+		this.compact();
+	}
+	
+	/**
+	 * Replays the records of the segment into the index. The segment is truncated at the
+	 *  first incomplete or corrupt record, e.g. after a write was interrupted.
+	 */
+	private void scan(Segment segment) throws IOException {
+		final byte[] data = new byte[(int)segment.channel.size()];
+		segment.read(data, 0);
+		
+		final ByteBuffer buffer = ByteBuffer.wrap(data);
+		final CRC32 crc = new CRC32();
+		
+		int offset = 0;
+		while (offset + HEADER_SIZE <= data.length) {
+			final int length = buffer.getInt(offset);
+			final int checksum = buffer.getInt(offset + 4);
+			
+			if (length <= 0 || length > data.length - offset - HEADER_SIZE) {
+				break;
+			}
+			
+			crc.reset();
+			crc.update(data, offset + HEADER_SIZE, length);
+			if ((int)crc.getValue() != checksum) {
+				break;
+			}
+			
+			final int start = offset + HEADER_SIZE;
+			switch (data[start]) {
+				case RECORD_EVENT:
+					//The event payload starts with the encoding version, followed by the ID and the lane
+					final long id = buffer.getLong(start + 2);
+					int lane = (data[start + 1] >= 3 ? data[start + 10] : this.decodeLane(data, start + 1, length - 1));
+					if (lane < 0 || lane >= EventManager.LANES) {
+						lane = EventManager.LANE_NORMAL;
+					}
+					this.put(id, new Location(segment, lane, start + 1, length - 1));
+					this.nextID = Math.max(this.nextID, id + 1);
+					break;
+				case RECORD_REMOVE:
+					final int count = buffer.getInt(start + 1);
+					for (int i = 0; i < count; i++) {
+						this.remove(buffer.getLong(start + 5 + i * 8));
+					}
+					break;
+				case RECORD_REMOVE_RANGE:
+					this.removeRange(ALL_LANES, buffer.getLong(start + 1));
+					break;
+				case RECORD_REMOVE_LANE_RANGE:
+					this.removeRange(data[start + 1], buffer.getLong(start + 2));
+					break;
+				case RECORD_RETRY:
+					final int retries = buffer.getInt(start + 1);
+					for (int i = 0; i < retries; i++) {
+						final int position = start + 5 + i * 20;
+						this.retry(buffer.getLong(position), buffer.getInt(position + 8), buffer.getLong(position + 12));
+					}
+					break;
+				default:
+					if (Utils.DEBUG) { Log.w(TAG, "Skipping unknown record " + data[start]); }
+					break;
+			}
+			
+			offset = start + length;
+		}
+		
+		if (offset < data.length) {
+			if (Utils.DEBUG) { Log.w(TAG, "Truncating " + segment.file.getName() + " at " + offset + " of " + data.length); }
+			
+			segment.channel.truncate(offset);
+		}
+		segment.size = offset;
+	}
+	
+	/**
+	 * Appends the records to the last segment and syncs them to disk
+	 *
+	 * @return the segment the records were written to
+	 */
+	private Segment append(byte[] records) throws IOException {
+		Segment segment = (this.segments.isEmpty() ? null : this.segments.get(this.segments.size() - 1));
+		if (segment == null || segment.size >= SEGMENT_SIZE) {
+			segment = new Segment(new File(this.directory, String.format(Locale.US, "%019d", this.nextID) + SEGMENT_SUFFIX));
+			this.segments.add(segment);
+		}
+		
+		segment.write(records);
+		
+		return segment;
+	}
+	
+	/**
+	 * Deletes the oldest segments as long as all their events are removed. Tombstones in
+	 *  a segment only refer to events in that or older segments, so this never revives events.
+	 */
+	private void compact() {
+		while (!this.segments.isEmpty() && this.segments.get(0).live == 0) {
+			Segment segment = this.segments.get(0);
+			
+			//The last segment is deleted as well, instead of being reused under a name that no
+			// longer matches nextID. Its IDs are not reused in this process.
+			if (Utils.DEBUG) { Log.i(TAG, "Deleting segment " + segment.file.getName()); }
+			
+			segment.close();
+			segment.file.delete();
+			this.segments.remove(0);
+		}
+	}
+	
+	/**
+	 * The lane of an event that was encoded before lanes were added
+	 */
+	private int decodeLane(byte[] data, int offset, int length) {
+		try {
+			return EventCodec.decode(data, offset, length).lane;
+		} catch (final IOException ioe) {
+			if (Utils.DEBUG) { ioe.printStackTrace(); }
+			return EventManager.LANE_NORMAL;
+		}
+	}
+	
+	private void put(long id, Location location) {
+		this.index.put(id, location);
+		this.laneIndexes.get(location.lane).put(id, location);
+		location.segment.live++;
+	}
+	
+	private void remove(long id) {
+		final Location location = this.index.remove(id);
+		if (location != null) {
+			this.laneIndexes.get(location.lane).remove(id);
+			location.segment.live--;
+		}
+	}
+	
+	/**
+	 * Sets the retry state of a live event, the state of removed events is ignored
+	 */
+	private void retry(long id, int attempts, long nextAttemptTime) {
+		final Location location = this.index.get(id);
+		if (location != null) {
+			location.attempts = attempts;
+			location.nextAttemptTime = nextAttemptTime;
+		}
+	}
+	
+	private void removeRange(int lane, long maxID) {
+		final SortedMap<Long, Location> removed = (lane != ALL_LANES ? this.laneIndexes.get(lane) : this.index).headMap(maxID + 1);
+		for (Map.Entry<Long, Location> entry : removed.entrySet()) {
+			final Location location = entry.getValue();
+			
+			//Remove the event from the other index as well
+			if (lane != ALL_LANES) {
+				this.index.remove(entry.getKey());
+			} else {
+				this.laneIndexes.get(location.lane).remove(entry.getKey());
+			}
+			location.segment.live--;
+		}
+		removed.clear();
+	}
+	
+	private static void writeRecord(ByteArrayOutputStream records, byte type, byte[] payload) throws IOException {
+		final CRC32 crc = new CRC32();
+		crc.update(type);
+		crc.update(payload);
+		
+		DataOutputStream out = new DataOutputStream(records);
+		out.writeInt(payload.length + 1);
+		out.writeInt((int)crc.getValue());
+		out.writeByte(type);
+		out.write(payload);
+		out.flush();
+	}
+	
+	// INTERNAL CLASSES //
+	
+	private static final class Segment {
+		
+		final File file;
+		final RandomAccessFile randomAccessFile;
+		final FileChannel channel;
+		long size;
+		int live;
+		
+		Segment(File file) throws IOException {
+			this.file = file;
+			this.randomAccessFile = new RandomAccessFile(file, "rw");
+			this.channel = this.randomAccessFile.getChannel();
+			this.size = this.channel.size();
+		}
+		
+		void read(byte[] data, long position) throws IOException {
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			while (buffer.hasRemaining()) {
+				if (this.channel.read(buffer, position + buffer.position()) < 0) {
+					throw new IOException("Unexpected end of " + this.file.getName());
+				}
+			}
+		}
+		
+		void write(byte[] data) throws IOException {
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			while (buffer.hasRemaining()) {
+				this.channel.write(buffer, this.size + buffer.position());
+			}
+			this.channel.force(false);
+			
+			this.size += data.length;
+		}
+		
+		void close() {
+			try {
+				this.randomAccessFile.close();
+			} catch (final IOException ioe) {
+				if (Utils.DEBUG) { ioe.printStackTrace(); }
+			}
+		}
+	}
+	
+	private static final class Location {
+		
+		final Segment segment;
+		final int lane;
+		final long offset;
+		final int length;
+		int attempts;
+		long nextAttemptTime;
+		
+		Location(Segment segment, int lane, long offset, int length) {
+			this.segment = segment;
+			this.lane = lane;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+}
@@ -17,27 +17,27 @@ package com.distimo.sdk;
  */
 
 import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLEncoder;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import android.content.ContentValues;
 import android.content.Context;
-import android.database.Cursor;
-import android.database.SQLException;
-import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteException;
-import android.database.sqlite.SQLiteOpenHelper;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.Log;
 
 final class EventManager {
@@ -47,184 +47,965 @@ final class EventManager {
 	
 	private final static long INITIAL_DELAY		= 1000;
 	private final static long MAX_DELAY			= 32000;
+	private final static long MAX_EVENT_DELAY	= 60 * 60 * 1000;
+	private final static long MAX_PAUSE			= 6 * 60 * 60 * 1000;
 	
-	private static boolean initialized			= false;
-	private static long delay					= INITIAL_DELAY;
+	private final static int MAX_BATCH_BYTES	= 64 * 1024;
+	private final static int PAGE_SIZE			= 50;
+	private final static int MAX_PENDING_EVENTS	= 64;
+	private final static int INTAKE_CAPACITY	= 1024;
 	
-	private static Handler eventHandler;
+	//Priority lanes, the purchases are never queued behind e.g. banner clicks
+	final static int LANE_HIGH					= 0;
+	final static int LANE_NORMAL				= 1;
+	final static int LANE_LOW					= 2;
+	final static int LANES						= 3;
+	private final static int[] LANE_WEIGHTS	= { 6, 3, 1 };
+	private final static int MIGRATION_CHUNK	= 100;
+	private final static int MAX_LOADED_PAGES	= 4;
+	private final static int RETRY_WHEEL_SIZE	= 512;
 	
-    private static EventStorage eventStorage;
-    private static EventSenderTask eventSender;
-    private static ArrayList<Event> eventsList;
+	private static volatile boolean initialized	= false;
+	private static volatile boolean shutdown		= false;
+	private static long delay					= 0;
+	private static long retryTime				= 0;
+	private static Random random				= new Random();
+	
+	private static volatile int batchSize		= 1;
+	private static volatile int batchBytes		= MAX_BATCH_BYTES;
+	private static volatile int windowSize		= 1;
+	private static volatile long commitLatency	= 0;
+	private static volatile int storageMode		= DistimoSDK.STORAGE_DEFAULT;
+	private static volatile int maxAttempts		= 10;
+	private static volatile long retryTick		= 500;
+	private static volatile boolean hedging		= false;
+	private static volatile boolean batchingUnsupported = false;
+	
+	private static volatile Handler eventHandler;
+	private static HandlerThread eventThread;
+	
+	//Incremented by initialize(), the callbacks of requests sent before are ignored
+	private static volatile int session			= 0;
+	
+    private static EventStore eventStore;
+    private final static EventQueue pendingEvents		= new EventQueue(INTAKE_CAPACITY);
+    private final static AtomicBoolean flushScheduled	= new AtomicBoolean(false);
+    private final static AtomicBoolean flushUrgent		= new AtomicBoolean(false);
+    private static Lane[] lanes;
+    private static HashedTimerWheel<Event> retryTimer;
+    private static CircuitBreaker circuitBreaker;
+    private static HashSet<Event> eventsInFlight	= new HashSet<Event>();
+    private static int sendersInFlight				= 0;
+    private static volatile ConstantPayload constantPayload;
+    private static volatile ChecksumIdentity checksumIdentity;
+    
+    private final static Runnable sendNextEventRunnable = new Runnable() {
+    	public void run() {
+    		sendNextEvent();
+    	}
+    };
+    
+    private final static HashedTimerWheel.Listener<Event> retryListener = new HashedTimerWheel.Listener<Event>() {
+    	public void onExpired(List<Event> events) {
+    		//The events may be sent again
+    		sendNextEvent();
+    	}
+    };
+    
+    private final static Runnable flushEventsRunnable = new Runnable() {
+    	public void run() {
+    		flushEvents();
+    		sendNextEvent();
+    	}
+    };
+    
+    private final static Runnable migrateParametersRunnable = new Runnable() {
+    	public void run() {
+    		try {
+    			if (((EventStorage) eventStore).migrateParameters(MIGRATION_CHUNK)) {
+    				//Continue after the work that was posted in the meantime
+    				eventHandler.post(this);
+    			}
+    		} catch (Throwable t) {
+    			if (Utils.DEBUG) { t.printStackTrace(); }
+    		}
+    	}
+    };
 
 	// -- Initialization -- //
     
     static void initialize(final Context context) {
 		synchronized (LOCK_OBJECT) {
 			if (Utils.DEBUG) { Log.i(TAG, "initialize()"); }
-
-			initialized = true;
 			
+			shutdown = false;
+			session++;
+			
+			//The thread of the previous session, if shutdown() was called, stops after its cleanup
+			final HandlerThread previousThread = eventThread;
+
 			//Create the eventHandler thread that should contain all calls to store/remove/send
 			HandlerThread handlerThread = new HandlerThread(TAG);
 			handlerThread.start();
-			eventHandler = new Handler(handlerThread.getLooper());
+			final Handler handler = new Handler(handlerThread.getLooper());
 			
-			//Create the eventStorage on the eventHandler thread and get the stored events
-			eventHandler.post(new Runnable() {
+			//Create the eventStore on the eventHandler thread and get the first page of stored events.
+			// This is posted before the handler is published, so it runs before anything else on the thread.
+			handler.post(new Runnable() {
 				public void run() {
+					if (previousThread != null) {
+						//Wait until the previous session has stored its events and closed its eventStore
+						try {
+							previousThread.join();
+						} catch (final InterruptedException ie) {
+							Thread.currentThread().interrupt();
+						}
+					}
+					
+					//The requests of the previous session are ignored when they finish
+					eventsInFlight = new HashSet<Event>();
+					sendersInFlight = 0;
+					delay = 0;
+					retryTime = 0;
+					
+					lanes = new Lane[LANES];
+					for (int i = 0; i < LANES; i++) {
+						lanes[i] = new Lane(i, LANE_WEIGHTS[i]);
+					}
+					retryTimer = new HashedTimerWheel<Event>(handler, retryTick, RETRY_WHEEL_SIZE, retryListener);
+					circuitBreaker = new CircuitBreaker(context);
+					
 					try {
-						eventStorage = new EventStorage(context);
-						eventsList = eventStorage.getEvents();
+						eventStore = openEventStore(context);
+						for (Lane lane : lanes) {
+							lane.hasMoreEvents = true;
+						}
 					} catch (Throwable t) {
 						if (Utils.DEBUG) { t.printStackTrace(); }
-					} finally {
-						//Make sure the events list is created, event when the storage failed 
-						if (eventsList == null) {
-							eventsList = new ArrayList<Event>();
-						}
 					}
-
-					if (Utils.DEBUG) { Log.i(TAG, "Found " + eventsList.size() + " event(s)"); }
+					
+					loadEvents();
 
 					sendNextEvent();
+					
+					//Move the parameters of events stored before schema version 4 in small chunks
+					if (eventStore instanceof EventStorage) {
+						handler.post(migrateParametersRunnable);
+					}
 				}
 			});
+			
+			eventThread = handlerThread;
+			eventHandler = handler;
+			
+			//From here on logEvent schedules the flushes, this one stores the events that were logged before in one batch
+			initialized = true;
+			handler.post(flushEventsRunnable);
 		}
 	}
     
-	// -- Protected methods -- //
-    
-    static void logEvent(final Event event) {
+	/**
+	 * Opens the store of the configured storage mode. Events that are still in the store
+	 *  of the other storage engine, e.g. after the storage mode was changed, are moved into it.
+	 */
+	private static EventStore openEventStore(Context context) throws IOException {
+		final File logDirectory = new File(context.getFilesDir(), EventLog.DIRECTORY_NAME);
+		
+		if (storageMode == DistimoSDK.STORAGE_LOG) {
+			EventLog log = new EventLog(logDirectory);
+			
+			if (context.getDatabasePath(EventStorage.DATABASE_NAME).exists()) {
+				EventStorage storage = new EventStorage(context, false);
+				final boolean migrated = migrateEvents(storage, log);
+				storage.close();
+				
+				if (migrated) {
+					context.deleteDatabase(EventStorage.DATABASE_NAME);
+				}
+			}
+			
+			return log;
+		} else {
+			EventStorage storage = new EventStorage(context, (storageMode == DistimoSDK.STORAGE_WAL));
+			
+			if (logDirectory.isDirectory()) {
+				EventLog log = new EventLog(logDirectory);
+				final boolean migrated = migrateEvents(log, storage);
+				log.close();
+				
+				if (migrated) {
+					EventLog.delete(logDirectory);
+				}
+			}
+			
+			return storage;
+		}
+	}
+	
+	/**
+	 * Moves all events page by page, each page is removed from the source once it is stored
+	 *  in the destination
+	 *
+	 * @return true if all events were moved
+	 */
+	private static boolean migrateEvents(EventStore from, EventStore to) {
+		if (Utils.DEBUG) { Log.i(TAG, "migrateEvents()"); }
+		
+		try {
+			long afterID = -1;
+			while (true) {
+				ArrayList<Event> page = from.getEvents(EventStore.ALL_LANES, afterID, PAGE_SIZE);
+				if (page.isEmpty()) {
+					return true;
+				}
+				
+				//Storing sets the IDs of the destination
+				afterID = page.get(page.size() - 1).id;
+				
+				if (!to.storeEvents(page) || !from.removeEvents(page, EventStore.ALL_LANES, afterID)) {
+					return false;
+				}
+				
+				//Keep the backoff of the events that were rejected before
+				ArrayList<Event> retried = new ArrayList<Event>();
+				for (Event event : page) {
+					if (event.attempts > 0) {
+						retried.add(event);
+					}
+				}
+				if (!retried.isEmpty()) {
+					to.updateRetryState(retried);
+				}
+				
+				if (Utils.DEBUG) { Log.i(TAG, "Migrated " + page.size() + " event(s)"); }
+			}
+		} catch (Throwable t) {
+			if (Utils.DEBUG) { t.printStackTrace(); }
+			return false;
+		}
+	}
+	
+	/**
+	 * Closes the event storage and stops the eventHandler thread. Events logged after this
+	 *  call are ignored until initialize() is called again.
+	 */
+	static void shutdown() {
 		synchronized (LOCK_OBJECT) {
-			if (Utils.DEBUG) { Log.e(TAG, "logEvent(" + event.name + ")"); }
+			if (Utils.DEBUG) { Log.i(TAG, "shutdown()"); }
 			
 			if (!initialized) {
 				return;
 			}
 			
-			//Store and (optionally) send the event on the eventHandler thread
-			eventHandler.post(new Runnable() {
+			shutdown = true;
+			initialized = false;
+			
+			final Handler handler = eventHandler;
+			handler.post(new Runnable() {
 				public void run() {
-					storeEvent(event);
-
-					if (eventsList.size() == 1) {
-						sendEvent(event);
+					//A next session only starts once this thread has stopped, so these are still the objects of this session
+					final EventStore store = eventStore;
+					final HashedTimerWheel<Event> timer = retryTimer;
+					
+					handler.removeCallbacks(sendNextEventRunnable);
+					handler.removeCallbacks(flushEventsRunnable);
+					timer.clear();
+					
+					if (store != null) {
+						//Store the events that are still waiting for a commit, the next session loads them
+						flushScheduled.set(false);
+						flushUrgent.set(false);
+						
+						ArrayList<Event> events = new ArrayList<Event>();
+						pendingEvents.drainTo(events);
+						storeEvents(store, events);
+						
+						store.close();
 					}
+					
+					handler.getLooper().quit();
 				}
 			});
 		}
+	}
+    
+	// -- Configuration -- //
+    
+    /**
+     * Set the maximum number of events and the maximum request body size (in bytes) that are
+     *  combined into a single request. A batch size of 1 disables batching.
+     */
+    static void setBatchLimits(int maxEvents, int maxBytes) {
+    	if (Utils.DEBUG) { Log.i(TAG, "setBatchLimits(" + maxEvents + ", " + maxBytes + ")"); }
+    	
+    	batchSize = Math.max(1, maxEvents);
+    	batchBytes = Math.max(0, maxBytes);
+    }
+    
+    /**
+     * Set the maximum number of requests that are in flight at the same time.
+     */
+    static void setWindowSize(int maxRequests) {
+    	if (Utils.DEBUG) { Log.i(TAG, "setWindowSize(" + maxRequests + ")"); }
+    	
+    	windowSize = Math.max(1, maxRequests);
+    }
+    
+    /**
+     * Set the maximum time (in milliseconds) that a logged event waits before it is stored.
+     * Events logged within this time are stored in a single transaction.
+     */
+    static void setCommitLatency(long maxLatency) {
+    	if (Utils.DEBUG) { Log.i(TAG, "setCommitLatency(" + maxLatency + ")"); }
+    	
+    	commitLatency = Math.max(0, maxLatency);
+    }
+    
+    /**
+     * Set the storage mode of the event database, one of the DistimoSDK.STORAGE_* values.
+     * Only applies when it is set before initialize(..) is called.
+     */
+    static void setStorageMode(int mode) {
+    	if (Utils.DEBUG) { Log.i(TAG, "setStorageMode(" + mode + ")"); }
+    	
+    	storageMode = mode;
+    }
+    
+    /**
+     * Set the granularity of the timer for the retries of rejected events, a coarser tick
+     *  wakes the eventHandler thread less often. Only used when the EventManager is initialized.
+     */
+    static void setRetryTick(long tick) {
+    	if (Utils.DEBUG) { Log.i(TAG, "setRetryTick(" + tick + ")"); }
+    	
+    	retryTick = Math.max(10, tick);
+    }
+    
+    /**
+     * Enable hedged requests: when the collector has not answered after the 95th percentile
+     *  of the recent request durations, the request is sent a second time. An event may
+     *  then be delivered twice.
+     */
+    static void setHedging(boolean enabled) {
+    	if (Utils.DEBUG) { Log.i(TAG, "setHedging(" + enabled + ")"); }
+    	
+    	hedging = enabled;
+    }
+    
+    /**
+     * Set the number of times the collector may reject an event before it is moved to the
+     *  dead letter store.
+     */
+    static void setMaxAttempts(int attempts) {
+    	if (Utils.DEBUG) { Log.i(TAG, "setMaxAttempts(" + attempts + ")"); }
+    	
+    	maxAttempts = Math.max(1, attempts);
+    }
+    
+	// -- Protected methods -- //
+    
+    /**
+     * Queues the event without taking a lock, the pending events are stored and sent
+     *  together on the eventHandler thread. Events logged before initialize() are kept
+     *  in the same queue, up to its capacity, and stored once the eventStore is open.
+     */
+    static void logEvent(final Event event) {
+		if (Utils.DEBUG) { Log.e(TAG, "logEvent(" + event.name + ")"); }
+		
+		if (shutdown) {
+			if (Utils.DEBUG) { Log.w(TAG, "Shut down, dropping " + event.name); }
+			return;
+		}
+		
+		final Handler handler = eventHandler;
+		final boolean ready = (initialized && handler != null);
+		
+		if (!pendingEvents.offer(event)) {
+			if (!ready) {
+				if (Utils.DEBUG) { Log.w(TAG, "Too many events before initialize(), dropping " + event.name); }
+				return;
+			}
+			
+			//The intake is full, hand the event over directly
+			handler.post(new Runnable() {
+				public void run() {
+					flushEvents(event);
+					sendNextEvent();
+				}
+			});
+			return;
+		}
+		
+		if (!ready) {
+			//initialize() may have finished after the first check, its flush may then have run before the offer
+			if (initialized) {
+				scheduleFlush(eventHandler);
+			}
+			
+			//Otherwise staged in the intake until initialize() has opened the eventStore
+			return;
+		}
+		
+		scheduleFlush(handler);
+    }
+    
+    private static void scheduleFlush(Handler handler) {
+    	//Only the first producer after a flush schedules the next one
+    	if (pendingEvents.size() >= MAX_PENDING_EVENTS) {
+    		if (!flushUrgent.getAndSet(true)) {
+    			handler.removeCallbacks(flushEventsRunnable);
+    			handler.post(flushEventsRunnable);
+    		}
+    	} else if (flushScheduled.compareAndSet(false, true)) {
+    		handler.postDelayed(flushEventsRunnable, commitLatency);
+    	}
+    }
+    
+    private static void flushEvents() {
+    	flushEvents(null);
     }
     
-	// -- Private methods -- //
+    /**
+     * Stores the pending events, followed by the extra event if it is not null
+     */
+    private static void flushEvents(Event extra) {
+    	//Reset the flags first, events queued after this are either drained below or schedule a new flush
+    	flushScheduled.set(false);
+    	flushUrgent.set(false);
+    	
+    	ArrayList<Event> events = new ArrayList<Event>();
+    	pendingEvents.drainTo(events);
+    	if (extra != null) {
+    		events.add(extra);
+    	}
+    	
+    	if (events.isEmpty()) {
+    		return;
+    	}
+    	
+    	if (Utils.DEBUG) { Log.i(TAG, "flushEvents(" + events.size() + ")"); }
+    	
+    	storeEvents(eventStore, events);
+    	
+    	for (Event event : events) {
+    		//Events that are stored have an ID
+    		final boolean stored = (event.id != -1);
+    		final Lane lane = lanes[event.lane];
+    		
+    		//Stored events behind unloaded pages are loaded when the lane reaches them
+    		if (!stored || !lane.hasMoreEvents) {
+    			lane.events.add(event);
+    			
+    			if (stored) {
+    				lane.lastLoadedID = event.id;
+    			}
+    		}
+    	}
+    }
+    
+    /**
+     * Stores the events that were logged, the events that could be stored get an ID
+     */
+    private static void storeEvents(EventStore store, List<Event> events) {
+    	if (events.isEmpty()) {
+    		return;
+    	}
+    	
+    	try {
+    		final long start = SystemClock.uptimeMillis();
+    		
+    		for (Event event : events) {
+    			//Events logged before DistimoSDK.onCreate don't have the app details yet
+    			if (event.bundleID == null) {
+    				event.bundleID = DistimoSDK.bundleID;
+    			}
+    			if (event.appVersion == null) {
+    				event.appVersion = DistimoSDK.appVersion;
+    			}
+    			
+    			//Calculate the checksums here instead of on the threads that logged the events, they are stored with the events
+    			event.getChecksum();
+    		}
+    		
+    		store.storeEvents(events);
+    		
+    		if (Utils.DEBUG) { Log.i(TAG, "Stored " + events.size() + " event(s) in " + (SystemClock.uptimeMillis() - start) + "ms"); }
+    	} catch (Throwable t) {
+    		if (Utils.DEBUG) { t.printStackTrace(); }
+    	}
+    }
+    
+    private static void loadEvents() {
+    	for (Lane lane : lanes) {
+    		loadEvents(lane);
+    	}
+    }
+    
+    /**
+     * Loads the next page of stored events of the lane when the number of its queued events
+     *  that are not in flight drops below half a page. At most MAX_LOADED_PAGES pages are
+     *  queued, so a backlog of events that are backing off is not loaded into memory at once.
+     */
+    private static void loadEvents(Lane lane) {
+    	final int pageSize = Math.max(PAGE_SIZE, batchSize * windowSize);
+    	
+    	if (!lane.hasMoreEvents || lane.events.size() >= MAX_LOADED_PAGES * pageSize) {
+    		return;
+    	}
+    	
+    	//Events that are backing off don't count, so they can't block the lane
+    	if (countSendableEvents(lane, System.currentTimeMillis(), pageSize / 2) >= pageSize / 2) {
+    		return;
+    	}
+    	
+    	if (Utils.DEBUG) { Log.i(TAG, "loadEvents(" + lane.priority + ") after " + lane.lastLoadedID); }
+    	
+    	try {
+    		final long start = SystemClock.uptimeMillis();
+    		
+    		ArrayList<Event> page = eventStore.getEvents(lane.priority, lane.lastLoadedID, pageSize);
+    		lane.hasMoreEvents = (page.size() == pageSize);
+    		
+    		//Events stored without a checksum get it calculated in parallel, instead of one by one when sent
+    		ChecksumCalculator.calculate(page);
+    		
+    		final long now = System.currentTimeMillis();
+    		for (Event event : page) {
+    			lane.events.add(event);
+    			lane.lastLoadedID = event.id;
+    			
+    			//Still backing off after a restart
+    			if (event.nextAttemptTime > now) {
+    				retryTimer.schedule(event, event.nextAttemptTime);
+    			}
+    		}
+    		
+    		if (Utils.DEBUG) { Log.i(TAG, "Loaded " + page.size() + " event(s) in " + (SystemClock.uptimeMillis() - start) + "ms"); }
+    	} catch (Throwable t) {
+    		if (Utils.DEBUG) { t.printStackTrace(); }
+    		
+    		lane.hasMoreEvents = false;
+    	}
+    }
+    
+    /**
+     * Removes the acknowledged events from storage and from the queue, with one transaction per lane
+     */
+    private static void removeEvents(List<Event> events) {
+    	if (events.isEmpty()) {
+    		return;
+    	}
+    	
+    	if (Utils.DEBUG) { Log.i(TAG, "removeEvents(" + events.size() + ")"); }
+    	
+    	for (Lane lane : lanes) {
+    		ArrayList<Event> laneEvents = new ArrayList<Event>();
+    		for (Event event : events) {
+    			if (event.lane == lane.priority) {
+    				laneEvents.add(event);
+    			}
+    		}
+    		
+    		if (!laneEvents.isEmpty()) {
+    			removeEvents(lane, laneEvents);
+    		}
+    	}
+    }
     
-    private static void storeEvent(Event event) {
-    	if (Utils.DEBUG) { Log.i(TAG, "storeEvent(" + event.name + ")"); }
+    private static void removeEvents(Lane lane, List<Event> events) {
+    	HashSet<Event> acknowledged = new HashSet<Event>(events);
+    	
+    	long maxID = -1;
+    	for (Event event : events) {
+    		maxID = Math.max(maxID, event.id);
+    	}
+    	
+    	//The events are acknowledged in order if no stored event of the lane up to maxID remains
+    	boolean inOrder = true;
+    	for (Event event : lane.events) {
+    		if (event.id == -1) {
+    			continue;
+    		}
+    		if (event.id > maxID) {
+    			break;
+    		}
+    		if (!acknowledged.contains(event)) {
+    			inOrder = false;
+    			break;
+    		}
+    	}
     	
     	try {
-    		eventStorage.storeEvent(event);
+    		final long start = SystemClock.uptimeMillis();
+    		
+    		eventStore.removeEvents(events, lane.priority, (inOrder ? maxID : -1));
+    		
+    		if (Utils.DEBUG) { Log.i(TAG, "Removed " + events.size() + " event(s) in " + (SystemClock.uptimeMillis() - start) + "ms"); }
     	} catch (Throwable t) {
     		if (Utils.DEBUG) { t.printStackTrace(); }
     	}
     	
-    	eventsList.add(event);
+    	lane.events.removeAll(acknowledged);
+    }
+    
+    /**
+     * Counts the events of the lane that are not in flight and not backing off, up to max
+     */
+    private static int countSendableEvents(Lane lane, long now, int max) {
+    	int count = 0;
+    	for (Event event : lane.events) {
+    		if (count >= max) {
+    			break;
+    		}
+    		if (event.nextAttemptTime <= now && !eventsInFlight.contains(event)) {
+    			count++;
+    		}
+    	}
+    	return count;
     }
     
-    private static void removeEvent(Event event) {
-    	if (Utils.DEBUG) { Log.i(TAG, "removeEvent(" + event.name + ")"); }
+    /**
+     * Backs off the events that the collector rejected, each with its own exponential delay so
+     *  the other events are sent in the meantime. Events that are rejected too often are moved
+     *  to the dead letter store.
+     */
+    private static void rejectEvents(List<Event> events) {
+    	if (events.isEmpty()) {
+    		return;
+    	}
+    	
+    	if (Utils.DEBUG) { Log.i(TAG, "rejectEvents(" + events.size() + ")"); }
+    	
+    	final long now = System.currentTimeMillis();
+    	ArrayList<Event> retried = new ArrayList<Event>();
+    	ArrayList<Event> dead = new ArrayList<Event>();
+    	
+    	for (Event event : events) {
+    		event.attempts++;
+    		
+    		if (event.attempts >= maxAttempts) {
+    			dead.add(event);
+    		} else {
+    			//Between half and the full delay, which doubles with every attempt
+    			final long eventDelay = Math.min(INITIAL_DELAY << Math.min(event.attempts - 1, 30), MAX_EVENT_DELAY);
+    			event.nextAttemptTime = now + eventDelay / 2 + (long)(random.nextDouble() * (eventDelay / 2));
+    			retried.add(event);
+    			
+    			retryTimer.schedule(event, event.nextAttemptTime);
+    		}
+    	}
     	
     	try {
-    		eventStorage.removeEvent(event);
+    		if (!retried.isEmpty()) {
+    			eventStore.updateRetryState(retried);
+    		}
     	} catch (Throwable t) {
     		if (Utils.DEBUG) { t.printStackTrace(); }
     	}
     	
-    	eventsList.remove(event);
+    	deadLetterEvents(dead);
     }
     
-	private static void sendEvent(Event event) {
-		if (Utils.DEBUG) { Log.i(TAG, "sendEvent(" + event.name + ")"); }
+    /**
+     * Moves the events that will never be accepted to the dead letter store
+     */
+    private static void deadLetterEvents(List<Event> events) {
+    	if (events.isEmpty()) {
+    		return;
+    	}
+    	
+    	if (Utils.DEBUG) { Log.w(TAG, "Moving " + events.size() + " event(s) to the dead letter store"); }
+    	
+    	try {
+    		eventStore.deadLetterEvents(events);
+    	} catch (Throwable t) {
+    		if (Utils.DEBUG) { t.printStackTrace(); }
+    	}
+    	
+    	for (Event event : events) {
+    		retryTimer.cancel(event);
+    		lanes[event.lane].events.remove(event);
+    	}
+    }
+    
+	private static boolean sendEvents(Event[] events) {
+		if (Utils.DEBUG) { Log.i(TAG, "sendEvents(" + events.length + ")"); }
+		
+		if (!NetworkExecutor.execute(new EventSenderTask(events, session))) {
+			return false;
+		}
+		
+		for (Event event : events) {
+			eventsInFlight.add(event);
+		}
+		sendersInFlight++;
 		
-		eventSender = new EventSenderTask();
-		eventSender.execute(event);
+		return true;
 	}
 	
 	private static void sendNextEvent() {
 		if (Utils.DEBUG) { Log.i(TAG, "sendNextEvent()"); }
 		
-		if (eventsList.size() > 0) {
-			sendEvent(eventsList.get(0));
-		} else {
-			if (Utils.DEBUG) { Log.i(TAG, "No more events to send"); }
+		if (SystemClock.uptimeMillis() < retryTime) {
+			//Backing off, the scheduled retry will continue
+			if (Utils.DEBUG) { Log.i(TAG, "Retry scheduled in " + (retryTime - SystemClock.uptimeMillis()) + "ms"); }
+			return;
+		}
+		
+		final long now = System.currentTimeMillis();
+		
+		final long coolOff = circuitBreaker.getRemainingCoolOff(now);
+		if (coolOff > 0) {
+			//The collector is down, don't wake the radio until the circuit breaker allows a probe
+			if (Utils.DEBUG) { Log.i(TAG, "Circuit open, probing in " + coolOff + "ms"); }
+			
+			eventHandler.removeCallbacks(sendNextEventRunnable);
+			eventHandler.postDelayed(sendNextEventRunnable, coolOff);
+			return;
+		}
+		
+		loadEvents();
+		
+		//Keep up to windowSize requests in flight, or a single probe while the circuit is half-open
+		while (sendersInFlight < windowSize && circuitBreaker.allowRequest(now)) {
+			Event[] batch = nextBatch(now);
+			if (batch == null) {
+				//Events that are backing off are sent when the retryTimer expires them
+				if (Utils.DEBUG) { Log.i(TAG, "No more events to send, " + retryTimer.size() + " event(s) backing off"); }
+				break;
+			}
+			
+			if (sendEvents(batch)) {
+				circuitBreaker.onRequestSent(now);
+			} else {
+				//The executor is saturated, retry later if no completed request will continue
+				if (sendersInFlight == 0) {
+					scheduleRetry();
+				}
+				break;
+			}
 		}
 	}
 	
-	// -- Callback methods -- //
+	/**
+	 * Picks the lane of the next request with smooth weighted round robin: each lane with
+	 *  events to send gains its weight, the lane with the most credit is picked and pays
+	 *  the total weight of the lanes that took part. High priority lanes go first, but the
+	 *  others still get their share.
+	 */
+	private static Event[] nextBatch(long now) {
+		Lane selected = null;
+		int totalWeight = 0;
+		
+		for (Lane lane : lanes) {
+			if (countSendableEvents(lane, now, 1) == 0) {
+				//An idle lane doesn't save up credit
+				lane.credit = 0;
+				continue;
+			}
+			
+			lane.credit += lane.weight;
+			totalWeight += lane.weight;
+			
+			if (selected == null || lane.credit > selected.credit) {
+				selected = lane;
+			}
+		}
+		
+		if (selected == null) {
+			return null;
+		}
+		
+		selected.credit -= totalWeight;
+		
+		return nextBatch(selected, now);
+	}
 	
-	private static void onEventSent(final Event event) {
-		synchronized (LOCK_OBJECT) {
-			if (Utils.DEBUG) { Log.i(TAG, "onEventSent(" + event.name + ")"); }
-
-			eventSender = null;
-
-			delay = INITIAL_DELAY;
-
-			//Remove and send the event on the eventHandler thread
-			eventHandler.post(new Runnable() {
-				public void run() {
-					removeEvent(event);
-					sendNextEvent();
+	/**
+	 * Collects the first events in the lane that are not in flight or backing off and fit in a
+	 *  single request. Events with POST data are always sent on their own.
+	 */
+	private static Event[] nextBatch(Lane lane, long now) {
+		ArrayList<Event> batch = new ArrayList<Event>();
+		int bytes = 0;
+		
+		for (Event event : lane.events) {
+			if (eventsInFlight.contains(event) || event.nextAttemptTime > now) {
+				continue;
+			}
+			
+			if (event.postData != null || batchSize <= 1 || batchingUnsupported) {
+				if (batch.isEmpty()) {
+					batch.add(event);
 				}
-			});
+				break;
+			}
+			
+			if (batch.size() >= batchSize) {
+				break;
+			}
+			
+			bytes += event.urlParamString().length() + 1;
+			if (bytes > batchBytes && batch.size() > 0) {
+				break;
+			}
+			
+			batch.add(event);
 		}
+		
+		return (batch.isEmpty() ? null : batch.toArray(new Event[batch.size()]));
 	}
 	
-	private static void onEventFailed(final Event event) {
-		synchronized (LOCK_OBJECT) {
-			if (Utils.DEBUG) { Log.i(TAG, "onEventFailed(" + event.name + ")"); }
-
-			eventSender = null;
+	private static void onRequestFinished(Event[] events) {
+		for (Event event : events) {
+			eventsInFlight.remove(event);
+		}
+		sendersInFlight--;
+	}
+	
+	/**
+	 * Posts the next attempt on the eventHandler after an exponential backoff with random jitter,
+	 *  without keeping any thread busy in the meantime
+	 */
+	private static void scheduleRetry() {
+		delay = (delay == 0 ? INITIAL_DELAY : Math.min(delay * 2, MAX_DELAY));
+		
+		//Wait between half and the full delay, so devices don't retry in lockstep
+		final long wait = delay / 2 + (long)(random.nextDouble() * (delay / 2));
+		retryTime = SystemClock.uptimeMillis() + wait;
+		
+		if (Utils.DEBUG) { Log.i(TAG, "scheduleRetry(), retrying in " + wait + "ms"); }
+		
+		eventHandler.removeCallbacks(sendNextEventRunnable);
+		eventHandler.postAtTime(sendNextEventRunnable, retryTime);
+	}
+	
+	/**
+	 * Pauses sending for the time the collector asked for, plus up to 10% so devices that
+	 *  were throttled at the same time don't return at once. The backoff delay is kept.
+	 */
+	private static void pauseSending(long pause) {
+		pause = Math.min(pause, MAX_PAUSE);
+		final long wait = pause + (long)(random.nextDouble() * (pause / 10));
+		retryTime = Math.max(retryTime, SystemClock.uptimeMillis() + wait);
+		
+		if (Utils.DEBUG) { Log.i(TAG, "pauseSending(), retrying in " + (retryTime - SystemClock.uptimeMillis()) + "ms"); }
+		
+		eventHandler.removeCallbacks(sendNextEventRunnable);
+		eventHandler.postAtTime(sendNextEventRunnable, retryTime);
+	}
+	
+	// -- Callback methods -- //
+	
+	private static void onEventsSent(final int requestSession, final Event[] requestEvents, final List<Event> events) {
+		if (Utils.DEBUG) { Log.i(TAG, "onEventsSent(" + events.size() + ")"); }
 
-			delay = Math.min(delay * 2, MAX_DELAY);
+		//Remove and send the events on the eventHandler thread
+		eventHandler.post(new Runnable() {
+			public void run() {
+				if (isPreviousSession(requestSession)) {
+					return;
+				}
+				
+				onRequestFinished(requestEvents);
+				
+				delay = 0;
+				circuitBreaker.onSuccess();
+				
+				removeEvents(events);
+				sendNextEvent();
+			}
+		});
+	}
+	
+	private static void onEventsFailed(final int requestSession, final Event[] requestEvents, final List<Event> sentEvents, final List<Event> rejectedEvents,
+			final List<Event> deadEvents, final List<Event> failedEvents, final long retryAfter) {
+		if (Utils.DEBUG) { Log.i(TAG, "onEventsFailed(" + sentEvents.size() + " sent, " + rejectedEvents.size() + " rejected, " + deadEvents.size() + " dropped, " + failedEvents.size() + " failed)"); }
 
-			//Send the event on the eventHandler thread
-			eventHandler.post(new Runnable() {
-				public void run() {
+		//Remove the acknowledged events on the eventHandler thread and retry the others
+		eventHandler.post(new Runnable() {
+			public void run() {
+				if (isPreviousSession(requestSession)) {
+					return;
+				}
+				
+				onRequestFinished(requestEvents);
+				
+				removeEvents(sentEvents);
+				rejectEvents(rejectedEvents);
+				deadLetterEvents(deadEvents);
+				
+				//Rejected events prove the collector is up, network errors and throttling count as failures
+				if (!failedEvents.isEmpty()) {
+					circuitBreaker.onFailure(System.currentTimeMillis());
+				} else {
+					circuitBreaker.onSuccess();
+				}
+				
+				if (retryAfter > 0) {
+					//The collector asked to pause, all events wait
+					pauseSending(retryAfter);
+				} else if (!failedEvents.isEmpty()) {
+					//The collector could not be reached, back off with all events
+					scheduleRetry();
+				} else {
+					//Only the rejected events back off
+					delay = 0;
 					sendNextEvent();
 				}
-			});
+			}
+		});
+	}
+	
+	/**
+	 * The request was sent before shutdown(), its events were reloaded as new objects by initialize()
+	 */
+	private static boolean isPreviousSession(int requestSession) {
+		if (requestSession != session) {
+			if (Utils.DEBUG) { Log.w(TAG, "Ignoring the response to a request of a previous session"); }
+			return true;
 		}
+		
+		return false;
 	}
 	
 	// INTERNAL CLASS EVENT //
 	
 	static final class Event {
 		
-		private long id;
-		private String name;
-		private Map<String, String> params;
-		private String postData;
-		private long timestamp;
-		private String checksum;
-		private String bundleID;
-		private String appVersion;
-		private String sdkVersion;
+		long id;
+		int lane;
+		int attempts;
+		long nextAttemptTime;
+		String name;
+		Map<String, String> params;
+		String postData;
+		long timestamp;
+		private volatile String checksum;
+		private volatile String checksumIdentity;
+		String bundleID;
+		String appVersion;
+		String sdkVersion;
 		
 		/**
 		 * Use this constructor to create a new event.
 		 * The time, bundleID and appVersion will automatically be set.
 		 */
 		Event(String name, Map<String, String> params, String postData) {
-			this(-1, name, params, postData, System.currentTimeMillis(), DistimoSDK.bundleID, DistimoSDK.appVersion, DistimoSDK.VERSION);
+			this(-1, laneFor(name), name, params, postData, System.currentTimeMillis(), DistimoSDK.bundleID, DistimoSDK.appVersion, DistimoSDK.VERSION, null, null);
 		}
 		
 		/**
-		 * Use this constructor for a stored event.
+		 * Use this constructor for a stored event. The checksum is calculated when it is
+		 *  first needed if it is null, e.g. for events stored by an older version, or if it
+		 *  was calculated with another SDK key or other IDs than the current ones.
 		 */
-		Event(long id, String name, Map<String, String> params, String postData, long timestamp, String bundleID, String appVersion, String sdkVersion) {
+		Event(long id, int lane, String name, Map<String, String> params, String postData, long timestamp, String bundleID, String appVersion, String sdkVersion,
+				String checksum, String checksumIdentity) {
 			if (Utils.DEBUG) { Log.i(TAG, "Event()"); }
 			
 			this.id = id;
+			this.lane = (lane >= 0 && lane < LANES ? lane : laneFor(name));
 			this.name = name;
 			this.params = params;
 			this.postData = postData;
@@ -232,469 +1013,624 @@ final class EventManager {
 			this.bundleID = bundleID;
 			this.appVersion = appVersion;
 			this.sdkVersion = sdkVersion;
-			this.calculateChecksum();
+			this.checksum = checksum;
+			this.checksumIdentity = checksumIdentity;
+		}
+		
+		/**
+		 * The priority lane of events with this name
+		 */
+		static int laneFor(String name) {
+			if ("InAppPurchase".equals(name) || "ExternalPurchase".equals(name) || "FirstLaunch".equals(name)) {
+				return LANE_HIGH;
+			} else if ("BannerClick".equals(name) || "DistimoException".equals(name)) {
+				return LANE_LOW;
+			}
+			
+			return LANE_NORMAL;
 		}
 		
 		void setId(long id) {
 			this.id = id;
 		}
 		
-		String urlParamString() {
-			if (Utils.DEBUG) { Log.i(TAG, "Event.urlParamString()"); }
+		/**
+		 * Set the number of times the event was rejected and the time (in milliseconds since
+		 *  the epoch) before which it is not sent again
+		 */
+		void setRetryState(int attempts, long nextAttemptTime) {
+			this.attempts = attempts;
+			this.nextAttemptTime = nextAttemptTime;
+		}
+		
+		boolean hasChecksum() {
+			return (this.checksum != null && ChecksumIdentity.current().digest.equals(this.checksumIdentity));
+		}
+		
+		/**
+		 * The checksum is calculated on first use, which is on the eventHandler thread
+		 *  before the event is stored, so the callers of logEvent don't do the hashing.
+		 * It is calculated again when the SDK key or the IDs in the payload changed.
+		 */
+		String getChecksum() {
+			final String identity = ChecksumIdentity.current().digest;
+			String result = this.checksum;
 			
-			String result = this.urlParamPayload();
-			result += "&ct=" + System.currentTimeMillis();
-			result += "&cs=" + this.checksum;
+			if (result == null || !identity.equals(this.checksumIdentity)) {
+				result = this.calculateChecksum();
+				this.checksumIdentity = identity;
+				this.checksum = result;
+			}
 			
 			return result;
 		}
 		
-		private String urlParamPayload() {
-			if (Utils.DEBUG) { Log.i(TAG, "Event.urlParamPayload()"); }
+		/**
+		 * The identity of the SDK key and the IDs the checksum was calculated with, call
+		 *  getChecksum() first
+		 */
+		String getChecksumIdentity() {
+			return this.checksumIdentity;
+		}
+		
+		String urlParamString() {
+			if (Utils.DEBUG) { Log.i(TAG, "Event.urlParamString()"); }
 			
-			String result = "en=" + this.name;
+			StringBuilder result = this.urlParamPayload();
+			result.append("&ct=").append(System.currentTimeMillis());
+			result.append("&cs=").append(this.getChecksum());
 			
-			result += "&lt=" + this.timestamp;
-			result += "&av=" + this.appVersion;
-			result += "&sv=" + this.sdkVersion;
-			result += "&bu=" + this.bundleID;
-			result += "&oi=" + DistimoSDK.publicKey;
-			result += "&uu=" + DistimoSDK.uniqueUserID;
-			result += "&hu=" + DistimoSDK.uniqueHardwareID;
-			result += "&es=" + "a";
+			return result.toString();
+		}
+		
+		private StringBuilder urlParamPayload() {
+			if (Utils.DEBUG) { Log.i(TAG, "Event.urlParamPayload()"); }
 			
-			if (this.params != null) {
-				try {
-					result += "&ep=" + URLEncoder.encode(this.parameterString(), "UTF-8");
-				} catch (final UnsupportedEncodingException uee) {
-					if (Utils.DEBUG) { uee.printStackTrace(); }
-				}
+			StringBuilder result = new StringBuilder(256);
+			try {
+				this.appendPayload(result);
+			} catch (final IOException ioe) {
+				//Not thrown by a StringBuilder
+				if (Utils.DEBUG) { ioe.printStackTrace(); }
 			}
 			
 			return result;
 		}
 		
-		private String parameterString() {
+		/**
+		 * Writes the payload to a StringBuilder for sending, or straight into an Md5Hasher
+		 *  for the checksum
+		 */
+		private void appendPayload(Appendable out) throws IOException {
+			out.append("en=").append(this.name);
+			out.append("&lt=").append(Long.toString(this.timestamp));
+			this.appendConstantPayload(out);
+			this.appendParameterPayload(out);
+		}
+		
+		/**
+		 * The part of the payload that is the same for all events of this process
+		 */
+		private void appendConstantPayload(Appendable out) throws IOException {
+			out.append("&av=").append(this.appVersion);
+			out.append("&sv=").append(this.sdkVersion);
+			out.append("&bu=").append(this.bundleID);
+			out.append("&oi=").append(DistimoSDK.publicKey);
+			out.append("&uu=").append(DistimoSDK.uniqueUserID);
+			out.append("&hu=").append(DistimoSDK.uniqueHardwareID);
+			out.append("&es=").append("a");
+		}
+		
+		/**
+		 * Appends the parameters as key=value pairs separated by ';', with the keys and values
+		 *  URL encoded and the whole string URL encoded again
+		 */
+		private void appendParameterPayload(Appendable out) throws IOException {
 			if (this.params != null) {
-				if (Utils.DEBUG) { Log.i(TAG, "Event.parameterString()"); }
-
-				String result = "";
-
-				for (String key : this.params.keySet()) {
-					try {
-						String value = URLEncoder.encode(this.params.get(key), "UTF-8");
-						key = URLEncoder.encode(key, "UTF-8");
-						if (result.length() > 0) {
-							result += ";";
-						}
-						result += key + "=" + value;
-					} catch (final UnsupportedEncodingException uee) {
-						if (Utils.DEBUG) { uee.printStackTrace(); }
+				out.append("&ep=");
+				
+				boolean first = true;
+				for (Map.Entry<String, String> entry : this.params.entrySet()) {
+					if (entry.getKey() == null || entry.getValue() == null) {
+						if (Utils.DEBUG) { Log.w(TAG, "Skipping parameter " + entry.getKey()); }
 						continue;
 					}
+					
+					if (!first) {
+						out.append("%3B"); //';'
+					}
+					first = false;
+					
+					Utils.urlEncode(out, entry.getKey(), true);
+					out.append("%3D"); //'='
+					Utils.urlEncode(out, entry.getValue(), true);
 				}
-
-				return result;
 			}
-			
-			return null;
 		}
 		
-		private void calculateChecksum() {
+		private String calculateChecksum() {
 			if (Utils.DEBUG) { Log.i(TAG, "Event.calculateChecksum()"); }
 			
-			String getPayload = Utils.md5(this.urlParamPayload());
-			if (Utils.DEBUG) { Log.i(TAG, "Hashing " + this.urlParamPayload() + " --> " + getPayload); }
+			//Same result as md5(md5(md5(payload) + md5(postData)) + privateKey), without the intermediate Strings
+			final ConstantPayload constant = this.constantPayload();
+			final Md5Hasher hasher = Md5Hasher.get();
 			
-			String payload = null;
+			try {
+				//Only the name, time and parameters are encoded for each event
+				hasher.append("en=").append(this.name);
+				hasher.append("&lt=").append(this.timestamp);
+				hasher.appendEncoded(constant.data, constant.chars);
+				this.appendParameterPayload(hasher);
+			} catch (final IOException ioe) {
+				//Not thrown by an Md5Hasher
+				if (Utils.DEBUG) { ioe.printStackTrace(); }
+			}
+			byte[] payload = hasher.digest();
 			
 			if (this.postData != null) {
-				String postPayload = Utils.md5(this.postData);
-				if (Utils.DEBUG) { Log.i(TAG, "Hashing " + this.postData + " --> " + postPayload); }
-				
-				payload = Utils.md5(getPayload + postPayload);
-				if (Utils.DEBUG) { Log.i(TAG, "Hashing " + getPayload + postPayload + " --> " + payload); }
-			} else {
-				payload = getPayload;
+				final byte[] postPayload = hasher.append(this.postData).digest();
+				payload = hasher.appendHex(payload).appendHex(postPayload).digest();
 			}
 			
-			String result = Utils.md5(payload + DistimoSDK.privateKey);
-			if (Utils.DEBUG) { Log.i(TAG, "Hashing " + payload + DistimoSDK.privateKey + " --> " + result); }
+			//An empty digest means MD5 is not available, like the empty result of Utils.md5
+			String result = (payload.length > 0 ? hasher.appendHex(payload).append(DistimoSDK.privateKey).hexDigest() : "");
+			if (Utils.DEBUG) { Log.i(TAG, "Hashing " + this.urlParamPayload() + " --> " + result); }
 			
-			this.checksum = result;
+			return result;
+		}
+		
+		private ConstantPayload constantPayload() {
+			ConstantPayload result = constantPayload;
+			
+			//Rebuilt when the IDs are set, or for a stored event of another app version
+			if (result == null || !result.matches(this)) {
+				result = new ConstantPayload(this);
+				constantPayload = result;
+			}
+			
+			return result;
 		}
 	}
 	
-	private static final class EventSenderTask extends AsyncTask<Event, String, Boolean> {
+	/**
+	 * The encoded constant part of the payload, with the values it was encoded from
+	 */
+	private static final class ConstantPayload {
 		
-		private final static String EVENT_URL		= "https://a.distimo.mobi/e/";
-		private Event event							= null;
+		private final String appVersion;
+		private final String sdkVersion;
+		private final String bundleID;
+		private final String publicKey;
+		private final String uniqueUserID;
+		private final String uniqueHardwareID;
 		
-		@Override
-		protected void onPreExecute() {
-			super.onPreExecute();
-		}
+		final byte[] data;
+		final int chars;
 		
-		@Override
-	    protected Boolean doInBackground(Event... uri) {
-			if (Utils.DEBUG) { Log.i(TAG, "EventSenderTask.doInBackground(), delaying for " + delay + "ms"); }
+		ConstantPayload(Event event) {
+			if (Utils.DEBUG) { Log.i(TAG, "ConstantPayload()"); }
+			
+			this.appVersion = event.appVersion;
+			this.sdkVersion = event.sdkVersion;
+			this.bundleID = event.bundleID;
+			this.publicKey = DistimoSDK.publicKey;
+			this.uniqueUserID = DistimoSDK.uniqueUserID;
+			this.uniqueHardwareID = DistimoSDK.uniqueHardwareID;
 			
+			final Md5Hasher hasher = Md5Hasher.get();
 			try {
-				Thread.sleep(delay);
-			} catch (InterruptedException e) {
-				if (Utils.DEBUG) { e.printStackTrace(); }
+				event.appendConstantPayload(hasher);
+			} catch (final IOException ioe) {
+				//Not thrown by an Md5Hasher
+				if (Utils.DEBUG) { ioe.printStackTrace(); }
 			}
+			this.data = hasher.toByteArray();
+			this.chars = hasher.charCount();
+			hasher.reset();
+		}
+		
+		boolean matches(Event event) {
+			return equals(this.appVersion, event.appVersion)
+					&& equals(this.sdkVersion, event.sdkVersion)
+					&& equals(this.bundleID, event.bundleID)
+					&& equals(this.publicKey, DistimoSDK.publicKey)
+					&& equals(this.uniqueUserID, DistimoSDK.uniqueUserID)
+					&& equals(this.uniqueHardwareID, DistimoSDK.uniqueHardwareID);
+		}
+		
+		private static boolean equals(String a, String b) {
+			return (a == b || (a != null && a.equals(b)));
+		}
+	}
+	
+	/**
+	 * A digest of the SDK key and the IDs that are part of each checksum. It is stored with
+	 *  the checksum, which is only used again while they are the same.
+	 */
+	private static final class ChecksumIdentity {
+		
+		private final String publicKey;
+		private final String privateKey;
+		private final String uniqueUserID;
+		private final String uniqueHardwareID;
+		
+		final String digest;
+		
+		private ChecksumIdentity() {
+			this.publicKey = DistimoSDK.publicKey;
+			this.privateKey = DistimoSDK.privateKey;
+			this.uniqueUserID = DistimoSDK.uniqueUserID;
+			this.uniqueHardwareID = DistimoSDK.uniqueHardwareID;
+			
+			this.digest = Utils.md5(this.publicKey + "&" + this.privateKey + "&" + this.uniqueUserID + "&" + this.uniqueHardwareID);
+		}
+		
+		/**
+		 * The identity of the current SDK key and IDs, rebuilt when they are set
+		 */
+		static ChecksumIdentity current() {
+			ChecksumIdentity result = checksumIdentity;
+			
+			if (result == null || !result.matches()) {
+				result = new ChecksumIdentity();
+				checksumIdentity = result;
+			}
+			
+			return result;
+		}
+		
+		private boolean matches() {
+			return equals(this.publicKey, DistimoSDK.publicKey)
+					&& equals(this.privateKey, DistimoSDK.privateKey)
+					&& equals(this.uniqueUserID, DistimoSDK.uniqueUserID)
+					&& equals(this.uniqueHardwareID, DistimoSDK.uniqueHardwareID);
+		}
+		
+		private static boolean equals(String a, String b) {
+			return (a == b || (a != null && a.equals(b)));
+		}
+	}
+	
+	/**
+	 * The queued events of one priority lane, in the order they are sent
+	 */
+	private static final class Lane {
+		
+		final int priority;
+		final int weight;
+		final LinkedHashSet<Event> events	= new LinkedHashSet<Event>();
+		long lastLoadedID					= -1;
+		boolean hasMoreEvents				= false;
+		int credit							= 0;
+		
+		Lane(int priority, int weight) {
+			this.priority = priority;
+			this.weight = weight;
+		}
+	}
+	
+	private static final class EventSenderTask implements Runnable {
+		
+		private final static String EVENT_URL		= "https://a.distimo.mobi/e/";
+		private final static String BATCH_URL		= "https://a.distimo.mobi/e/b/";
+		private final Event[] events;
+		private final int session;
+		private final List<Event> sentEvents		= new ArrayList<Event>();
+		private final List<Event> rejectedEvents	= new ArrayList<Event>();
+		private final List<Event> deadEvents		= new ArrayList<Event>();
+		private final List<Event> failedEvents		= new ArrayList<Event>();
+		
+		//Response classes, see classify(..)
+		final static int RESPONSE_ACCEPTED			= 0;
+		final static int RESPONSE_REJECTED			= 1;
+		final static int RESPONSE_PERMANENT			= 2;
+		final static int RESPONSE_THROTTLED			= 3;
+		final static int RESPONSE_TRANSIENT			= 4;
+		
+		//The pause requested with a Retry-After header, in milliseconds
+		private long retryAfter						= 0;
+		
+		EventSenderTask(Event[] events, int session) {
+			this.events = events;
+			this.session = session;
+		}
+		
+		public void run() {
+			final boolean result = this.send();
 			
-			Boolean result = false;
+			if (Utils.DEBUG) { Log.i(TAG, "EventSenderTask.run() finished"); }
+			
+			//The callbacks continue on the eventHandler thread
+			if (result == true) {
+				if (Utils.DEBUG) { Log.i(TAG, this.sentEvents.size() + " event(s) sent"); }
+				
+				EventManager.onEventsSent(this.session, this.events, this.sentEvents);
+			} else {
+				if (Utils.DEBUG) { Log.w(TAG, this.rejectedEvents.size() + " event(s) rejected, " + this.deadEvents.size() + " event(s) dropped, " + this.failedEvents.size() + " event(s) failed"); }
+				
+				EventManager.onEventsFailed(this.session, this.events, this.sentEvents, this.rejectedEvents, this.deadEvents, this.failedEvents, this.retryAfter);
+			}
+		}
+		
+	    private boolean send() {
+			if (Utils.DEBUG) { Log.i(TAG, "EventSenderTask.send()"); }
 			
 			// HTTP connection reuse which was buggy before FROYO
 			if (Build.VERSION.SDK_INT < 8) { //Build.VERSION_CODES.FROYO
 		        System.setProperty("http.keepAlive", "false");
 		    }
 			
-			if (uri != null) {
-				this.event = uri[0];
+			if (this.events.length > 0) {
+				final Response response = execute(this.events);
 				
-				final String urlString = EVENT_URL + "?" + this.event.urlParamString();
-				if (Utils.DEBUG) { Log.i("EventSenderTask", "Calling: " + urlString); }
-				
-				HttpURLConnection urlConnection = null;
-				try {
-					URL url = new URL(urlString);
-					urlConnection = (HttpURLConnection) url.openConnection();
-					
-					if (this.event.postData != null) {
-						if (Utils.DEBUG) { Log.i(TAG, "Sending POST data: " + this.event.postData); }
-						
-						byte[] buffer = this.event.postData.getBytes();
-						
-						if (buffer != null) {
-							urlConnection.setDoOutput(true);
-							urlConnection.setRequestMethod("POST");
-							urlConnection.setFixedLengthStreamingMode(buffer.length);
-
-							OutputStream out = new BufferedOutputStream(urlConnection.getOutputStream());
-							out.write(buffer, 0, buffer.length);
-							out.close();
-						}
-					} else {
-						urlConnection.setRequestMethod("GET");
-					}
+				if (this.events.length > 1 && (response.code == HttpURLConnection.HTTP_NOT_FOUND || response.code == HttpURLConnection.HTTP_BAD_METHOD)) {
+					//The collector doesn't support batches, send the events on their own from now on
+					if (Utils.DEBUG) { Log.w(TAG, "Batching unsupported, response " + response.code); }
 					
-					urlConnection.connect();
+					batchingUnsupported = true;
+					this.sendSingly();
+				} else if (this.events.length > 1 && isEventError(classify(response.code, response.retryAfter))) {
+					//The response doesn't tell which events are bad, so it can't count against all of them
+					if (Utils.DEBUG) { Log.w(TAG, "Batch refused with response " + response.code + ", sending the events on their own"); }
 					
-					if (urlConnection.getResponseCode() == HttpURLConnection.HTTP_OK) {
-						result = true;
-					}
-				} catch (final MalformedURLException mue) {
-					if (Utils.DEBUG) { Log.e(TAG, "Malformed URL: " + urlString); }
-				} catch (final Throwable t) {
-					if (Utils.DEBUG) { t.printStackTrace(); }
-				} finally {
-					if (urlConnection != null) {
-						urlConnection.disconnect();
-					}
+					this.sendSingly();
+				} else {
+					this.onResponse(response, this.events);
 				}
 			}
 			
-			return result;
+			return this.sentEvents.size() == this.events.length;
 	    }
+
+		/**
+		 * Sends the events of the task one by one, so each is classified by its own response
+		 */
+		private void sendSingly() {
+			for (Event event : this.events) {
+				if (this.retryAfter > 0 || !this.failedEvents.isEmpty()) {
+					//Don't keep sending while the collector is throttling or unreachable
+					this.failedEvents.add(event);
+				} else {
+					final Event[] single = new Event[] { event };
+					this.onResponse(execute(single), single);
+				}
+			}
+		}
 		
-	    @Override
-	    protected void onPostExecute(Boolean result) {
-	    	if (Utils.DEBUG) { Log.i(TAG, "EventSenderTask.onPostExecute()"); }
-			
-	        super.onPostExecute(result);
-	        
-	        if (result == true) {
-	        	if (Utils.DEBUG) { Log.i(TAG, "Event sent"); }
-	        	
-	        	EventManager.onEventSent(event);
-	        } else {
-	        	if (Utils.DEBUG) { Log.w(TAG, "Event failed"); }
-	        	
-	        	EventManager.onEventFailed(event);
-	        }
-	        
-	        this.event = null;
-	    }
-	}
-	
-	private static final class EventStorage extends SQLiteOpenHelper {
-		
-		private static final int DATABASE_VERSION						= 3;
-		private static final String DATABASE_NAME						= "iUMZo9KH0GINHA0grXdb";
-		
-		private static final String TABLE_EVENTS						= "m1IIXjAg5dqwkc1qBttt";
-		private static final String COLUMN_EVENT_ID						= "_id";
-		private static final String COLUMN_EVENT_NAME					= "E2JM7QGIpG60aWeT6a2Z";
-		private static final String COLUMN_EVENT_TIMESTAMP				= "rtAHrQshIqQgGaSiYdYq";
-		private static final String COLUMN_EVENT_BUNDLE_ID				= "rx2bp71JtmNNu0eXtWkB";
-		private static final String COLUMN_EVENT_APPVERSION				= "jH8jWi0okVm2Q851uonz";
-		private static final String COLUMN_EVENT_SDKVERSION				= "fMcxuAIZI0PONUrKi67t";
-		private static final String COLUMN_EVENT_SDKVERSION_CONSTRAINT	= "oU8Uiw7zWkIhaqu1AvFN";
-		private static final String COLUMN_EVENT_POSTDATA				= "YkWrccIQbLjJeOpjVUdD";
-		
-		private static final String TABLE_EVENT_PARAMETERS				= "z3nmDV24U0qFWm7X4pqU";
-		private static final String INDEX_EVENT_PARAMETERS				= "S6NFKoXGqBqw9DyWbYgA";
-		private static final String COLUMN_EVENT_PARAMETERS_EVENT_ID	= "BChtZqHo55haUvWaHAjE";
-		private static final String COLUMN_EVENT_PARAMETERS_KEY			= "Nbxub6tYsC4g5DbFbgZN";
-		private static final String COLUMN_EVENT_PARAMETERS_VALUE		= "t9PSswmXu2sE5PVA6Zq4";
-		
-		private static final String EVENTS_CREATE = 
-				"CREATE TABLE " + TABLE_EVENTS + " ("
-				+ COLUMN_EVENT_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
-				+ COLUMN_EVENT_NAME + " TEXT NOT NULL, "
-				+ COLUMN_EVENT_TIMESTAMP + " LONG, "
-				+ COLUMN_EVENT_BUNDLE_ID + " TEXT NOT NULL, "
-				+ COLUMN_EVENT_APPVERSION + " TEXT NOT NULL, "
-				+ COLUMN_EVENT_SDKVERSION + " TEXT NOT NULL, "
-				+ COLUMN_EVENT_POSTDATA + " TEXT);";
-		
-		private static final String EVENTS_ADD_SDKVERSION_COLUMN = 
-				"ALTER TABLE " + TABLE_EVENTS + " "
-				+ "ADD " + COLUMN_EVENT_SDKVERSION + " TEXT NOT NULL "
-				+ "CONSTRAINT " + COLUMN_EVENT_SDKVERSION_CONSTRAINT + " DEFAULT '';";
-		
-		private static final String EVENTS_ADD_POSTDATA_COLUMN =
-				"ALTER TABLE " + TABLE_EVENTS + " "
-				+ "ADD " + COLUMN_EVENT_POSTDATA + " TEXT;";
-		
-		private static final String EVENT_PARAMETERS_CREATE =
-				"CREATE TABLE " + TABLE_EVENT_PARAMETERS + " ("
-				+ COLUMN_EVENT_PARAMETERS_EVENT_ID + " INTEGER, "
-				+ COLUMN_EVENT_PARAMETERS_KEY + " TEXT NOT NULL, "
-				+ COLUMN_EVENT_PARAMETERS_VALUE + " TEXT NOT NULL);";
-		
-		private static final String EVENT_PARAMETERS_CREATE_INDEX =
-				"CREATE INDEX " + INDEX_EVENT_PARAMETERS + " ON "
-				+ TABLE_EVENT_PARAMETERS + " ("
-				+ COLUMN_EVENT_PARAMETERS_EVENT_ID + ", "
-				+ COLUMN_EVENT_PARAMETERS_KEY + ");";
-		
-		EventStorage(Context context) {
-			super(context, DATABASE_NAME, null, DATABASE_VERSION);
-		}
-		
-		@Override
-		public void onCreate(SQLiteDatabase db) {
-			if (Utils.DEBUG) { Log.i(TAG, "EventStorage.onCreate()"); }
-			
-			if (Utils.DEBUG) { Log.i(TAG, "Executing statement: " + EVENTS_CREATE); }
-			db.execSQL(EVENTS_CREATE);
-			
-			if (Utils.DEBUG) { Log.i(TAG, "Executing statement: " + EVENT_PARAMETERS_CREATE); }
-			db.execSQL(EVENT_PARAMETERS_CREATE);
-			
-			if (Utils.DEBUG) { Log.i(TAG, "Executing statement: " + EVENT_PARAMETERS_CREATE_INDEX); }
-			db.execSQL(EVENT_PARAMETERS_CREATE_INDEX);
-		}
-		
-		@Override
-		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-			if (Utils.DEBUG) { Log.i(TAG, "EventStorage.onUpgrade() " + oldVersion + " -> " + newVersion); }
-			
-			if (oldVersion < 2 && newVersion >= 2) {
-				if (Utils.DEBUG) { Log.i(TAG, "Executing statement: " + EVENTS_ADD_SDKVERSION_COLUMN); }
-				
-				db.execSQL(EVENTS_ADD_SDKVERSION_COLUMN);
+		/**
+		 * @return true if the response class blames the events of the request instead of the collector
+		 */
+		private static boolean isEventError(int responseClass) {
+			return (responseClass == RESPONSE_REJECTED || responseClass == RESPONSE_PERMANENT);
+		}
+		
+		/**
+		 * Sends the events, on their own or as a batch
+		 *
+		 * @return the response, with code -1 if the collector could not be reached
+		 */
+		private static Response execute(final Event[] requestEvents) {
+			try {
+				//Sent with connect, read and total timeouts, and optionally hedged
+				return HttpTransport.execute(new HttpTransport.Request<Response>() {
+					public Response execute(HttpTransport.Call call) throws IOException {
+						return (requestEvents.length == 1 ? sendEvent(call, requestEvents[0]) : sendBatch(call, requestEvents));
+					}
+				}, hedging);
+			} catch (final MalformedURLException mue) {
+				if (Utils.DEBUG) { Log.e(TAG, "Malformed URL: " + mue.getMessage()); }
+			} catch (final Throwable t) {
+				//The response was not read completely, none of the events count as rejected
+				if (Utils.DEBUG) { t.printStackTrace(); }
 			}
 			
-			if (oldVersion < 3 && newVersion >= 3) {
-				if (Utils.DEBUG) { Log.i(TAG, "Executing statement: " + EVENTS_ADD_POSTDATA_COLUMN); }
-				
-				db.execSQL(EVENTS_ADD_POSTDATA_COLUMN);
-			}
+			return new Response();
 		}
 		
-		boolean storeEvent(Event event) {
-			if (Utils.DEBUG) { Log.i(TAG, "EventStorage.storeEvent(" + event.name + " (" + event.id + "))"); }
+		/**
+		 * Sorts the events of one request by the response of the collector
+		 */
+		private void onResponse(Response response, Event[] requestEvents) {
+			this.sentEvents.addAll(response.acknowledged);
 			
-			//Assume failure
-			boolean result = false;
+			final int responseClass = classify(response.code, response.retryAfter);
 			
-			SQLiteDatabase database = null;
-			try {
-				database = this.getWritableDatabase();
-			} catch (final SQLiteException sqle) {
-				if (Utils.DEBUG) { sqle.printStackTrace(); }
+			if (Utils.DEBUG) { Log.i(TAG, "Response " + response.code + ", class " + responseClass); }
+			
+			if (responseClass == RESPONSE_THROTTLED) {
+				this.retryAfter = Math.max(this.retryAfter, response.retryAfter);
 			}
 			
-			if (database != null) {
-				try {
-					database.beginTransaction();
-
-					ContentValues eventValues = new ContentValues();
-					eventValues.put(COLUMN_EVENT_NAME, event.name);
-					eventValues.put(COLUMN_EVENT_TIMESTAMP, event.timestamp);
-					eventValues.put(COLUMN_EVENT_BUNDLE_ID, event.bundleID);
-					eventValues.put(COLUMN_EVENT_APPVERSION, event.appVersion);
-					eventValues.put(COLUMN_EVENT_SDKVERSION, event.sdkVersion);
-					eventValues.put(COLUMN_EVENT_POSTDATA, event.postData);
-					long eventID = database.insertOrThrow(TABLE_EVENTS, null, eventValues);
-					if (eventID != -1) {
-						//First step succeeded, now assume success
-						result = true;
-						
-						if (event.params != null) {
-							for (String key : event.params.keySet()) {
-								String value = event.params.get(key);
-								ContentValues parameterValues = new ContentValues();
-								parameterValues.put(COLUMN_EVENT_PARAMETERS_EVENT_ID, (int)eventID);
-								parameterValues.put(COLUMN_EVENT_PARAMETERS_KEY, key);
-								parameterValues.put(COLUMN_EVENT_PARAMETERS_VALUE, value);
-								long parameterID = database.insertOrThrow(TABLE_EVENT_PARAMETERS, null, parameterValues);
-								if (parameterID == -1) {
-									//The insert failed, set the result to false and break
-									result = false;
-									break;
-								}
-							}
-						}
-						
-						if (result == true) {
-							//All went well, set the transaction as successful
-							database.setTransactionSuccessful();
-							
-							//Set the ID to the event
-							event.setId(eventID);
-						}
+			for (Event event : requestEvents) {
+				if (!response.acknowledged.contains(event)) {
+					switch (responseClass) {
+						case RESPONSE_ACCEPTED:
+						case RESPONSE_REJECTED:
+							this.rejectedEvents.add(event);
+							break;
+						case RESPONSE_PERMANENT:
+							this.deadEvents.add(event);
+							break;
+						default:
+							//Throttled or transient, the events don't count as attempts
+							this.failedEvents.add(event);
+							break;
 					}
-				} catch (final SQLException se) {
-					if (Utils.DEBUG) { se.printStackTrace(); }
-					result = false;
 				}
-				
-				//End the transaction
-				database.endTransaction();
 			}
-			
-			this.close();
-			
-			return result;
 		}
 		
-		boolean removeEvent(Event event) {
-			if (Utils.DEBUG) { Log.i(TAG, "EventStorage.removeEvent(" + event.name + " (" + event.id + "))"); }
-			
-			//Assume failure
-			boolean result = false;
+		/**
+		 * Classifies the response of the collector:
+		 *  - accepted: 200, events that were not acknowledged count as rejected
+		 *  - rejected: the request may be accepted later, e.g. 413 or 409, the events back off individually
+		 *  - permanent: 400 or 422, the events themselves are malformed and will never be accepted
+		 *  - throttled: 429, 503 or a Retry-After header, the whole pipeline pauses
+		 *  - transient: other responses and network errors, all events back off. This includes
+		 *     401, 403, 404 and 405, which are about the endpoint and not about the events
+		 * Only the response to a single event counts as rejected or permanent, a batch that gets
+		 *  one of those responses is sent again event by event.
+		 */
+		static int classify(int responseCode, long retryAfter) {
+			if (responseCode == HttpURLConnection.HTTP_OK) {
+				return RESPONSE_ACCEPTED;
+			} else if (responseCode == 429 || responseCode == HttpURLConnection.HTTP_UNAVAILABLE
+					|| (retryAfter > 0 && responseCode >= 400)) {
+				return RESPONSE_THROTTLED;
+			} else if (responseCode == HttpURLConnection.HTTP_ENTITY_TOO_LARGE || responseCode == HttpURLConnection.HTTP_CONFLICT) {
+				return RESPONSE_REJECTED;
+			} else if (responseCode == HttpURLConnection.HTTP_BAD_REQUEST || responseCode == 422) { //Unprocessable Entity
+				return RESPONSE_PERMANENT;
+			}
+			return RESPONSE_TRANSIENT;
+		}
+		
+		/**
+		 * @return the pause of the Retry-After header in milliseconds, either in seconds or as an HTTP date, or 0
+		 */
+		private static long getRetryAfter(HttpURLConnection urlConnection) {
+			final String value = urlConnection.getHeaderField("Retry-After");
+			if (value == null) {
+				return 0;
+			}
 			
-			SQLiteDatabase database = null;
 			try {
-				database = this.getWritableDatabase();
-			} catch (final SQLiteException sqle) {
-				if (Utils.DEBUG) { sqle.printStackTrace(); }
+				return Math.max(0, Long.parseLong(value.trim()) * 1000);
+			} catch (final NumberFormatException nfe) {
+				final long date = urlConnection.getHeaderFieldDate("Retry-After", 0);
+				return (date > 0 ? Math.max(0, date - System.currentTimeMillis()) : 0);
 			}
+		}
+		
+		/**
+		 * Sends the event on its own, as a GET request or as a POST request with its POST data
+		 */
+		private static Response sendEvent(HttpTransport.Call call, Event event) throws IOException {
+			final Response response = new Response();
 			
-			if (database != null) {
-				try {
-					database.beginTransaction();
-					
-					//Delete the event
-					String whereClause = COLUMN_EVENT_ID + " = " + event.id;
-					database.delete(TABLE_EVENTS, whereClause, null);
-					
-					//Delete the event parameters
-					whereClause = COLUMN_EVENT_PARAMETERS_EVENT_ID + " = " + event.id;
-					database.delete(TABLE_EVENT_PARAMETERS, whereClause, null);
+			final String urlString = EVENT_URL + "?" + event.urlParamString();
+			if (Utils.DEBUG) { Log.i("EventSenderTask", "Calling: " + urlString); }
+			
+			HttpURLConnection urlConnection = null;
+			try {
+				URL url = new URL(urlString);
+				urlConnection = call.open(url);
+				
+				if (event.postData != null) {
+					if (Utils.DEBUG) { Log.i(TAG, "Sending POST data: " + event.postData); }
 					
-					//All went well, set the transaction as successful
-					database.setTransactionSuccessful();
+					byte[] buffer = event.postData.getBytes();
 					
-					result = true;
-				} catch (SQLException se) {
-					if (Utils.DEBUG) { se.printStackTrace(); }
+					if (buffer != null) {
+						urlConnection.setDoOutput(true);
+						urlConnection.setRequestMethod("POST");
+						urlConnection.setFixedLengthStreamingMode(buffer.length);
+
+						OutputStream out = new BufferedOutputStream(urlConnection.getOutputStream());
+						out.write(buffer, 0, buffer.length);
+						out.close();
+					}
+				} else {
+					urlConnection.setRequestMethod("GET");
 				}
 				
-				database.endTransaction();
+				urlConnection.connect();
+				
+				response.code = urlConnection.getResponseCode();
+				response.retryAfter = getRetryAfter(urlConnection);
+				
+				if (response.code == HttpURLConnection.HTTP_OK) {
+					response.acknowledged.add(event);
+				}
+			} finally {
+				if (urlConnection != null) {
+					urlConnection.disconnect();
+				}
 			}
 			
-			this.close();
-			
-			return result;
+			return response;
 		}
 		
-		ArrayList<Event> getEvents() {
-			if (Utils.DEBUG) { Log.i(TAG, "EventStorage.getEvents()"); }
-			ArrayList<Event> events = new ArrayList<Event>();
+		/**
+		 * Sends the events as one POST request, one url parameter string per line.
+		 * The collector replies with the checksums of the events it accepted, one per line. A 200
+		 *  response that acknowledges none of the events did not come from the collector, e.g. a
+		 *  proxy or captive portal, and is handled like a network error.
+		 */
+		private static Response sendBatch(HttpTransport.Call call, Event[] batch) throws IOException {
+			final Response response = new Response();
 			
-			SQLiteDatabase database = null;
-			try {
-				database = this.getReadableDatabase();
-			} catch (final SQLiteException sqle) {
-				if (Utils.DEBUG) { sqle.printStackTrace(); }
+			StringBuilder builder = new StringBuilder();
+			for (Event event : batch) {
+				if (builder.length() > 0) {
+					builder.append('\n');
+				}
+				builder.append(event.urlParamString());
 			}
+			
+			if (Utils.DEBUG) { Log.i("EventSenderTask", "Calling: " + BATCH_URL + " with " + batch.length + " event(s)"); }
+			
+			HttpURLConnection urlConnection = null;
+			try {
+				byte[] buffer = builder.toString().getBytes("UTF-8");
+				
+				URL url = new URL(BATCH_URL);
+				urlConnection = call.open(url);
+				urlConnection.setDoOutput(true);
+				urlConnection.setRequestMethod("POST");
+				urlConnection.setRequestProperty("Content-Type", "text/plain; charset=UTF-8");
+				urlConnection.setFixedLengthStreamingMode(buffer.length);
 
-			if (database != null) {
-				final String[] allColumns = {
-						COLUMN_EVENT_ID,
-						COLUMN_EVENT_NAME,
-						COLUMN_EVENT_TIMESTAMP,
-						COLUMN_EVENT_BUNDLE_ID,
-						COLUMN_EVENT_APPVERSION,
-						COLUMN_EVENT_SDKVERSION,
-						COLUMN_EVENT_POSTDATA};
-
-				Cursor cursor = database.query(TABLE_EVENTS, allColumns, null, null, null, null, COLUMN_EVENT_ID);
-				if (cursor != null) {
-					cursor.moveToFirst();
-
-					while (!cursor.isAfterLast()) {
-						int eventID = cursor.getInt(0);
-						String name = cursor.getString(1);
-						long timestamp = cursor.getLong(2);
-						String bundleID = cursor.getString(3);
-						String appVersion = cursor.getString(4);
-						String sdkVersion = cursor.getString(5);
-						String postData = null;
-						if (!cursor.isNull(6)) {
-							postData = cursor.getString(6);
+				OutputStream out = new BufferedOutputStream(urlConnection.getOutputStream());
+				out.write(buffer, 0, buffer.length);
+				out.close();
+				
+				response.code = urlConnection.getResponseCode();
+				response.retryAfter = getRetryAfter(urlConnection);
+				
+				if (response.code == HttpURLConnection.HTTP_OK) {
+					HashSet<String> checksums = new HashSet<String>();
+					
+					BufferedReader reader = new BufferedReader(new InputStreamReader(urlConnection.getInputStream(), "UTF-8"));
+					String line;
+					while ((line = reader.readLine()) != null) {
+						line = line.trim();
+						if (line.length() > 0) {
+							checksums.add(line);
 						}
-						Map<String, String> params = this.getEventParameters(database, eventID);
-
-						Event event = new Event(eventID, name, params, postData, timestamp, bundleID, appVersion, sdkVersion);
-						events.add(event);
-
-						cursor.moveToNext();
 					}
-
-					cursor.close();
+					reader.close();
+					
+					for (Event event : batch) {
+						if (checksums.contains(event.getChecksum())) {
+							response.acknowledged.add(event);
+						}
+					}
+					
+					if (response.acknowledged.isEmpty()) {
+						if (Utils.DEBUG) { Log.w("EventSenderTask", "No events acknowledged, ignoring the response"); }
+						
+						response.code = -1;
+					}
+				}
+			} finally {
+				if (urlConnection != null) {
+					urlConnection.disconnect();
 				}
-				
-				this.close();
 			}
 			
-			return events;
+			return response;
 		}
 		
-		Map<String, String> getEventParameters(SQLiteDatabase database, int eventID) {
-			HashMap<String, String> params = new HashMap<String, String>();
-			
-			final String[] allColumns = {
-					COLUMN_EVENT_PARAMETERS_EVENT_ID,
-					COLUMN_EVENT_PARAMETERS_KEY,
-					COLUMN_EVENT_PARAMETERS_VALUE };
-
-			final String selection = COLUMN_EVENT_PARAMETERS_EVENT_ID + " = " + eventID;
-
-			Cursor cursor = database.query(TABLE_EVENT_PARAMETERS, allColumns, selection, null, null, null, null);
-			if (cursor != null) {
-				cursor.moveToFirst();
-
-				while (!cursor.isAfterLast()) {
-					String key = cursor.getString(1);
-					String value = cursor.getString(2);
-
-					params.put(key, value);
-
-					cursor.moveToNext();
-				}
-				
-				cursor.close();
-			}
+		/**
+		 * The outcome of one attempt, a hedged request has two
+		 */
+		private static final class Response {
 			
-			return params;
+			//The HTTP response code, or -1 if the collector could not be reached
+			int code									= -1;
+			long retryAfter								= 0;
+			final List<Event> acknowledged				= new ArrayList<Event>();
 		}
 	}
-}
+}
\ No newline at end of file
@@ -0,0 +1,108 @@
+package com.distimo.sdk;
+
+/**
+ *  Copyright (c) 2012 Distimo. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.distimo.sdk.EventManager.Event;
+
+/**
+ * Bounded lock-free queue for events, any number of threads can offer events while
+ *  a single thread, the eventHandler thread, drains them
+ */
+final class EventQueue {
+	
+	private final AtomicReferenceArray<Event> slots;
+	private final int mask;
+	
+	//The next position to claim by a producer
+	private final AtomicLong tail = new AtomicLong(0);
+	
+	//The next position to drain, only written by the consumer
+	private volatile long head = 0;
+	
+	/**
+	 * @param capacity rounded up to a power of two
+	 */
+	EventQueue(int capacity) {
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		
+		this.slots = new AtomicReferenceArray<Event>(size);
+		this.mask = size - 1;
+	}
+	
+	/**
+	 * Adds the event without blocking, can be called from any thread
+	 *
+	 * @return false if the queue is full
+	 */
+	boolean offer(Event event) {
+		while (true) {
+			final long position = this.tail.get();
+			if (position - this.head >= this.slots.length()) {
+				return false;
+			}
+			
+			if (this.tail.compareAndSet(position, position + 1)) {
+				//The slot is empty, the consumer cleared it before moving the head past it
+				this.slots.set((int) (position & this.mask), event);
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Moves the queued events to the list, in the order in which their positions were
+	 *  claimed. Stops at an event that is claimed but not yet set by its producer, that
+	 *  producer schedules the next drain. Only called from the consumer thread.
+	 *
+	 * @return the number of events that were moved
+	 */
+	int drainTo(List<Event> events) {
+		int count = 0;
+		long position = this.head;
+		
+		while (true) {
+			final int index = (int) (position & this.mask);
+			final Event event = this.slots.get(index);
+			if (event == null) {
+				break;
+			}
+			
+			this.slots.set(index, null);
+			events.add(event);
+			count++;
+			position++;
+		}
+		
+		this.head = position;
+		
+		return count;
+	}
+	
+	/**
+	 * @return the number of claimed positions that were not drained yet
+	 */
+	int size() {
+		return (int) (this.tail.get() - this.head);
+	}
+}
@@ -0,0 +1,888 @@
+package com.distimo.sdk;
+
+/**
+ *  Copyright (c) 2012 Distimo. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.distimo.sdk.EventManager.Event;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.util.Log;
+
+final class EventStorage extends SQLiteOpenHelper implements EventStore {
+	
+	private static final String TAG									= "EventStorage";
+	
+	private static final int DATABASE_VERSION						= 8;
+	static final String DATABASE_NAME								= "iUMZo9KH0GINHA0grXdb";
+	
+	private static final String TABLE_EVENTS						= "m1IIXjAg5dqwkc1qBttt";
+	private static final String COLUMN_EVENT_ID						= "_id";
+	private static final String COLUMN_EVENT_NAME					= "E2JM7QGIpG60aWeT6a2Z";
+	private static final String COLUMN_EVENT_TIMESTAMP				= "rtAHrQshIqQgGaSiYdYq";
+	private static final String COLUMN_EVENT_BUNDLE_ID				= "rx2bp71JtmNNu0eXtWkB";
+	private static final String COLUMN_EVENT_APPVERSION				= "jH8jWi0okVm2Q851uonz";
+	private static final String COLUMN_EVENT_SDKVERSION				= "fMcxuAIZI0PONUrKi67t";
+	private static final String COLUMN_EVENT_SDKVERSION_CONSTRAINT	= "oU8Uiw7zWkIhaqu1AvFN";
+	private static final String COLUMN_EVENT_POSTDATA				= "YkWrccIQbLjJeOpjVUdD";
+	private static final String COLUMN_EVENT_PARAMETERS				= "Qw8LmT3vXo5NcR1dKy7P";
+	private static final String COLUMN_EVENT_CHECKSUM				= "Hc2ZrJ6nUe9WpA4sGt1M";
+	private static final String COLUMN_EVENT_CHECKSUM_IDENTITY		= "36uuugx3BOsnmaZLSFYU";
+	private static final String COLUMN_EVENT_LANE					= "Vb5NqL8cEy2TmK0xRf6D";
+	private static final String INDEX_EVENTS_LANE					= "Jd3WsP7gZa1YhN9uCo4X";
+	private static final String COLUMN_EVENT_ATTEMPTS				= "d31bpgXZq6HPEWmggWHO";
+	private static final String COLUMN_EVENT_NEXT_ATTEMPT			= "rGLNTt3iVQbgURMh70Ll";
+	
+	private static final String TABLE_DEAD_EVENTS					= "cHPLPiEVx8DRUwNL8wWI";
+	private static final String COLUMN_DEAD_EVENT_TIME				= "0bQ3djlXQ8nAtChpuw3y";
+	
+	private static final String TABLE_EVENT_PARAMETERS				= "z3nmDV24U0qFWm7X4pqU";
+	private static final String INDEX_EVENT_PARAMETERS				= "S6NFKoXGqBqw9DyWbYgA";
+	private static final String COLUMN_EVENT_PARAMETERS_EVENT_ID	= "BChtZqHo55haUvWaHAjE";
+	private static final String COLUMN_EVENT_PARAMETERS_KEY			= "Nbxub6tYsC4g5DbFbgZN";
+	private static final String COLUMN_EVENT_PARAMETERS_VALUE		= "t9PSswmXu2sE5PVA6Zq4";
+	
+	private static final String EVENTS_CREATE = 
+			"CREATE TABLE " + TABLE_EVENTS + " ("
+			+ COLUMN_EVENT_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+			+ COLUMN_EVENT_NAME + " TEXT NOT NULL, "
+			+ COLUMN_EVENT_TIMESTAMP + " LONG, "
+			+ COLUMN_EVENT_BUNDLE_ID + " TEXT NOT NULL, "
+			+ COLUMN_EVENT_APPVERSION + " TEXT NOT NULL, "
+			+ COLUMN_EVENT_SDKVERSION + " TEXT NOT NULL, "
+			+ COLUMN_EVENT_POSTDATA + " TEXT, "
+			+ COLUMN_EVENT_PARAMETERS + " BLOB, "
+			+ COLUMN_EVENT_CHECKSUM + " TEXT, "
+			+ COLUMN_EVENT_LANE + " INTEGER NOT NULL DEFAULT " + EventManager.LANE_NORMAL + ", "
+			+ COLUMN_EVENT_ATTEMPTS + " INTEGER NOT NULL DEFAULT 0, "
+			+ COLUMN_EVENT_NEXT_ATTEMPT + " LONG NOT NULL DEFAULT 0, "
+			+ COLUMN_EVENT_CHECKSUM_IDENTITY + " TEXT);";
+	
+	private static final String DEAD_EVENTS_CREATE =
+			"CREATE TABLE " + TABLE_DEAD_EVENTS + " ("
+			+ COLUMN_EVENT_ID + " INTEGER PRIMARY KEY, "
+			+ COLUMN_EVENT_NAME + " TEXT NOT NULL, "
+			+ COLUMN_EVENT_TIMESTAMP + " LONG, "
+			+ COLUMN_EVENT_BUNDLE_ID + " TEXT, "
+			+ COLUMN_EVENT_APPVERSION + " TEXT, "
+			+ COLUMN_EVENT_SDKVERSION + " TEXT, "
+			+ COLUMN_EVENT_POSTDATA + " TEXT, "
+			+ COLUMN_EVENT_PARAMETERS + " BLOB, "
+			+ COLUMN_EVENT_CHECKSUM + " TEXT, "
+			+ COLUMN_EVENT_LANE + " INTEGER, "
+			+ COLUMN_EVENT_ATTEMPTS + " INTEGER, "
+			+ COLUMN_DEAD_EVENT_TIME + " LONG);";
+	
+	private static final String EVENTS_ADD_SDKVERSION_COLUMN = 
+			"ALTER TABLE " + TABLE_EVENTS + " "
+			+ "ADD " + COLUMN_EVENT_SDKVERSION + " TEXT NOT NULL "
+			+ "CONSTRAINT " + COLUMN_EVENT_SDKVERSION_CONSTRAINT + " DEFAULT '';";
+	
+	private static final String EVENTS_ADD_POSTDATA_COLUMN =
+			"ALTER TABLE " + TABLE_EVENTS + " "
+			+ "ADD " + COLUMN_EVENT_POSTDATA + " TEXT;";
+	
+	private static final String EVENTS_ADD_PARAMETERS_COLUMN =
+			"ALTER TABLE " + TABLE_EVENTS + " "
+			+ "ADD " + COLUMN_EVENT_PARAMETERS + " BLOB;";
+	
+	private static final String EVENTS_ADD_CHECKSUM_COLUMN =
+			"ALTER TABLE " + TABLE_EVENTS + " "
+			+ "ADD " + COLUMN_EVENT_CHECKSUM + " TEXT;";
+	
+	private static final String EVENTS_ADD_LANE_COLUMN =
+			"ALTER TABLE " + TABLE_EVENTS + " "
+			+ "ADD " + COLUMN_EVENT_LANE + " INTEGER NOT NULL DEFAULT " + EventManager.LANE_NORMAL + ";";
+	
+	private static final String EVENTS_ADD_ATTEMPTS_COLUMN =
+			"ALTER TABLE " + TABLE_EVENTS + " "
+			+ "ADD " + COLUMN_EVENT_ATTEMPTS + " INTEGER NOT NULL DEFAULT 0;";
+	
+	private static final String EVENTS_ADD_NEXT_ATTEMPT_COLUMN =
+			"ALTER TABLE " + TABLE_EVENTS + " "
+			+ "ADD " + COLUMN_EVENT_NEXT_ATTEMPT + " LONG NOT NULL DEFAULT 0;";
+	
+	private static final String EVENTS_ADD_CHECKSUM_IDENTITY_COLUMN =
+			"ALTER TABLE " + TABLE_EVENTS + " "
+			+ "ADD " + COLUMN_EVENT_CHECKSUM_IDENTITY + " TEXT;";
+	
+	private static final String EVENTS_CREATE_LANE_INDEX =
+			"CREATE INDEX " + INDEX_EVENTS_LANE + " ON "
+			+ TABLE_EVENTS + " ("
+			+ COLUMN_EVENT_LANE + ", "
+			+ COLUMN_EVENT_ID + ");";
+	
+	private static final String EVENT_NAMES_QUERY =
+			"SELECT DISTINCT " + COLUMN_EVENT_NAME + " FROM " + TABLE_EVENTS + ";";
+	
+	private static final String EVENTS_UPDATE_LANE =
+			"UPDATE " + TABLE_EVENTS + " SET " + COLUMN_EVENT_LANE + " = ? WHERE " + COLUMN_EVENT_NAME + " = ?;";
+	
+	private static final String EVENT_PARAMETERS_CREATE =
+			"CREATE TABLE " + TABLE_EVENT_PARAMETERS + " ("
+			+ COLUMN_EVENT_PARAMETERS_EVENT_ID + " INTEGER, "
+			+ COLUMN_EVENT_PARAMETERS_KEY + " TEXT NOT NULL, "
+			+ COLUMN_EVENT_PARAMETERS_VALUE + " TEXT NOT NULL);";
+	
+	private static final String EVENT_PARAMETERS_CREATE_INDEX =
+			"CREATE INDEX " + INDEX_EVENT_PARAMETERS + " ON "
+			+ TABLE_EVENT_PARAMETERS + " ("
+			+ COLUMN_EVENT_PARAMETERS_EVENT_ID + ", "
+			+ COLUMN_EVENT_PARAMETERS_KEY + ");";
+	
+	private static final String EVENTS_PAGE_QUERY =
+			pageQuery(COLUMN_EVENT_ID + " > ?");
+	
+	private static final String EVENTS_LANE_PAGE_QUERY =
+			pageQuery(COLUMN_EVENT_LANE + " = ? AND " + COLUMN_EVENT_ID + " > ?");
+	
+	private static final String EVENT_INSERT =
+			"INSERT INTO " + TABLE_EVENTS + " ("
+			+ COLUMN_EVENT_NAME + ", "
+			+ COLUMN_EVENT_TIMESTAMP + ", "
+			+ COLUMN_EVENT_BUNDLE_ID + ", "
+			+ COLUMN_EVENT_APPVERSION + ", "
+			+ COLUMN_EVENT_SDKVERSION + ", "
+			+ COLUMN_EVENT_POSTDATA + ", "
+			+ COLUMN_EVENT_PARAMETERS + ", "
+			+ COLUMN_EVENT_CHECKSUM + ", "
+			+ COLUMN_EVENT_LANE + ", "
+			+ COLUMN_EVENT_CHECKSUM_IDENTITY + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?);";
+	
+	private static final String EVENT_RETRY_STATE_UPDATE =
+			"UPDATE " + TABLE_EVENTS + " SET " + COLUMN_EVENT_ATTEMPTS + " = ?, " + COLUMN_EVENT_NEXT_ATTEMPT + " = ? WHERE " + COLUMN_EVENT_ID + " = ?;";
+	
+	private static final String DEAD_EVENT_INSERT =
+			"INSERT OR REPLACE INTO " + TABLE_DEAD_EVENTS + " ("
+			+ COLUMN_EVENT_ID + ", "
+			+ COLUMN_EVENT_NAME + ", "
+			+ COLUMN_EVENT_TIMESTAMP + ", "
+			+ COLUMN_EVENT_BUNDLE_ID + ", "
+			+ COLUMN_EVENT_APPVERSION + ", "
+			+ COLUMN_EVENT_SDKVERSION + ", "
+			+ COLUMN_EVENT_POSTDATA + ", "
+			+ COLUMN_EVENT_PARAMETERS + ", "
+			+ COLUMN_EVENT_CHECKSUM + ", "
+			+ COLUMN_EVENT_LANE + ", "
+			+ COLUMN_EVENT_ATTEMPTS + ", "
+			+ COLUMN_DEAD_EVENT_TIME + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?);";
+	
+	//Only the most recently dropped events are kept, the ids are those of the original events
+	private static final String DEAD_EVENTS_TRIM =
+			"DELETE FROM " + TABLE_DEAD_EVENTS + " WHERE " + COLUMN_EVENT_ID + " NOT IN ("
+			+ "SELECT " + COLUMN_EVENT_ID + " FROM " + TABLE_DEAD_EVENTS + " "
+			+ "ORDER BY " + COLUMN_DEAD_EVENT_TIME + " DESC, " + COLUMN_EVENT_ID + " DESC LIMIT ?);";
+	
+	private static final String EVENT_PARAMETERS_UPDATE =
+			"UPDATE " + TABLE_EVENTS + " SET " + COLUMN_EVENT_PARAMETERS + " = ? WHERE " + COLUMN_EVENT_ID + " = ?;";
+	
+	private static final String LEGACY_PARAMETERS_QUERY =
+			"SELECT " + COLUMN_EVENT_PARAMETERS_EVENT_ID + ", " + COLUMN_EVENT_PARAMETERS_KEY + ", " + COLUMN_EVENT_PARAMETERS_VALUE + " "
+			+ "FROM " + TABLE_EVENT_PARAMETERS + " WHERE " + COLUMN_EVENT_PARAMETERS_EVENT_ID + " IN ("
+			+ "SELECT DISTINCT " + COLUMN_EVENT_PARAMETERS_EVENT_ID + " FROM " + TABLE_EVENT_PARAMETERS + " "
+			+ "ORDER BY " + COLUMN_EVENT_PARAMETERS_EVENT_ID + " LIMIT ?) "
+			+ "ORDER BY " + COLUMN_EVENT_PARAMETERS_EVENT_ID + ";";
+	
+	private static final String EVENTS_DELETE_RANGE =
+			"DELETE FROM " + TABLE_EVENTS + " WHERE " + COLUMN_EVENT_ID + " <= ?;";
+	
+	private static final String EVENT_PARAMETERS_DELETE_RANGE =
+			"DELETE FROM " + TABLE_EVENT_PARAMETERS + " WHERE " + COLUMN_EVENT_PARAMETERS_EVENT_ID + " <= ?;";
+	
+	private static final String EVENTS_DELETE_LANE_RANGE =
+			"DELETE FROM " + TABLE_EVENTS + " WHERE " + COLUMN_EVENT_LANE + " = ? AND " + COLUMN_EVENT_ID + " <= ?;";
+	
+	private static final String EVENT_PARAMETERS_DELETE_LANE_RANGE =
+			"DELETE FROM " + TABLE_EVENT_PARAMETERS + " WHERE " + COLUMN_EVENT_PARAMETERS_EVENT_ID + " IN ("
+			+ "SELECT " + COLUMN_EVENT_ID + " FROM " + TABLE_EVENTS + " WHERE " + COLUMN_EVENT_LANE + " = ? AND " + COLUMN_EVENT_ID + " <= ?);";
+	
+	private static final int MAX_DELETE_IDS = 500;
+	private static final int MAX_DEAD_EVENTS = 100;
+	
+	private static final long WAL_MMAP_SIZE = 4 * 1024 * 1024;
+	private static final int WAL_CACHE_PAGES = 256;
+	
+	private final boolean writeAheadLogging;
+	
+	private SQLiteDatabase database;
+	private SQLiteStatement insertEventStatement;
+	private SQLiteStatement updateParametersStatement;
+	private SQLiteStatement updateRetryStateStatement;
+	private SQLiteStatement insertDeadEventStatement;
+	private SQLiteStatement trimDeadEventsStatement;
+	private SQLiteStatement deleteEventsStatement;
+	private SQLiteStatement deleteParametersStatement;
+	private SQLiteStatement deleteLaneEventsStatement;
+	private SQLiteStatement deleteLaneParametersStatement;
+	
+	EventStorage(Context context, boolean writeAheadLogging) {
+		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+		
+		this.writeAheadLogging = writeAheadLogging;
+	}
+	
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		if (Utils.DEBUG) { Log.i(TAG, "EventStorage.onCreate()"); }
+		
+		if (Utils.DEBUG) { Log.i(TAG, "Executing statement: " + EVENTS_CREATE); }
+		db.execSQL(EVENTS_CREATE);
+		
+		if (Utils.DEBUG) { Log.i(TAG, "Executing statement: " + EVENT_PARAMETERS_CREATE); }
+		db.execSQL(EVENT_PARAMETERS_CREATE);
+		
+		if (Utils.DEBUG) { Log.i(TAG, "Executing statement: " + EVENT_PARAMETERS_CREATE_INDEX); }
+		db.execSQL(EVENT_PARAMETERS_CREATE_INDEX);
+		
+		if (Utils.DEBUG) { Log.i(TAG, "Executing statement: " + EVENTS_CREATE_LANE_INDEX); }
+		db.execSQL(EVENTS_CREATE_LANE_INDEX);
+		
+		if (Utils.DEBUG) { Log.i(TAG, "Executing statement: " + DEAD_EVENTS_CREATE); }
+		db.execSQL(DEAD_EVENTS_CREATE);
+	}
+	
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		if (Utils.DEBUG) { Log.i(TAG, "EventStorage.onUpgrade() " + oldVersion + " -> " + newVersion); }
+		
+		if (oldVersion < 2 && newVersion >= 2) {
+			if (Utils.DEBUG) { Log.i(TAG, "Executing statement: " + EVENTS_ADD_SDKVERSION_COLUMN); }
+			
+			db.execSQL(EVENTS_ADD_SDKVERSION_COLUMN);
+		}
+		
+		if (oldVersion < 3 && newVersion >= 3) {
+			if (Utils.DEBUG) { Log.i(TAG, "Executing statement: " + EVENTS_ADD_POSTDATA_COLUMN); }
+			
+			db.execSQL(EVENTS_ADD_POSTDATA_COLUMN);
+		}
+		
+		if (oldVersion < 4 && newVersion >= 4) {
+			if (Utils.DEBUG) { Log.i(TAG, "Executing statement: " + EVENTS_ADD_PARAMETERS_COLUMN); }
+			
+			//Existing parameter rows are moved in chunks by migrateParameters(..)
+			db.execSQL(EVENTS_ADD_PARAMETERS_COLUMN);
+		}
+		
+		if (oldVersion < 5 && newVersion >= 5) {
+			if (Utils.DEBUG) { Log.i(TAG, "Executing statement: " + EVENTS_ADD_CHECKSUM_COLUMN); }
+			
+			//Existing events get their checksum calculated again when they are sent
+			db.execSQL(EVENTS_ADD_CHECKSUM_COLUMN);
+		}
+		
+		if (oldVersion < 6 && newVersion >= 6) {
+			if (Utils.DEBUG) { Log.i(TAG, "Executing statement: " + EVENTS_ADD_LANE_COLUMN); }
+			
+			db.execSQL(EVENTS_ADD_LANE_COLUMN);
+			db.execSQL(EVENTS_CREATE_LANE_INDEX);
+			
+			//Move the existing events into the lane of their name, there are only a few distinct names
+			ArrayList<String> names = new ArrayList<String>();
+			Cursor cursor = db.rawQuery(EVENT_NAMES_QUERY, null);
+			if (cursor != null) {
+				cursor.moveToFirst();
+				while (!cursor.isAfterLast()) {
+					names.add(cursor.getString(0));
+					cursor.moveToNext();
+				}
+				cursor.close();
+			}
+			
+			for (String name : names) {
+				final int lane = Event.laneFor(name);
+				if (lane != EventManager.LANE_NORMAL) {
+					db.execSQL(EVENTS_UPDATE_LANE, new Object[] { Integer.valueOf(lane), name });
+				}
+			}
+		}
+		
+		if (oldVersion < 7 && newVersion >= 7) {
+			if (Utils.DEBUG) { Log.i(TAG, "Executing statement: " + EVENTS_ADD_ATTEMPTS_COLUMN); }
+			
+			db.execSQL(EVENTS_ADD_ATTEMPTS_COLUMN);
+			db.execSQL(EVENTS_ADD_NEXT_ATTEMPT_COLUMN);
+			db.execSQL(DEAD_EVENTS_CREATE);
+		}
+		
+		if (oldVersion < 8 && newVersion >= 8) {
+			if (Utils.DEBUG) { Log.i(TAG, "Executing statement: " + EVENTS_ADD_CHECKSUM_IDENTITY_COLUMN); }
+			
+			//Existing checksums have no identity, they are calculated again when they are sent
+			db.execSQL(EVENTS_ADD_CHECKSUM_IDENTITY_COLUMN);
+		}
+	}
+	
+	/**
+	 * Returns the database that stays open until close() is called, opening it and
+	 *  compiling the statements on first use
+	 */
+	private SQLiteDatabase open() {
+		if (this.database == null || !this.database.isOpen()) {
+			this.database = null;
+			
+			try {
+				SQLiteDatabase db = this.getWritableDatabase();
+				
+				if (this.writeAheadLogging) {
+					this.configureWriteAheadLogging(db);
+				}
+				
+				this.insertEventStatement = db.compileStatement(EVENT_INSERT);
+				this.updateParametersStatement = db.compileStatement(EVENT_PARAMETERS_UPDATE);
+				this.updateRetryStateStatement = db.compileStatement(EVENT_RETRY_STATE_UPDATE);
+				this.insertDeadEventStatement = db.compileStatement(DEAD_EVENT_INSERT);
+				this.trimDeadEventsStatement = db.compileStatement(DEAD_EVENTS_TRIM);
+				this.deleteEventsStatement = db.compileStatement(EVENTS_DELETE_RANGE);
+				this.deleteParametersStatement = db.compileStatement(EVENT_PARAMETERS_DELETE_RANGE);
+				this.deleteLaneEventsStatement = db.compileStatement(EVENTS_DELETE_LANE_RANGE);
+				this.deleteLaneParametersStatement = db.compileStatement(EVENT_PARAMETERS_DELETE_LANE_RANGE);
+				
+				this.database = db;
+			} catch (final SQLiteException sqle) {
+				if (Utils.DEBUG) { sqle.printStackTrace(); }
+			}
+		}
+		
+		return this.database;
+	}
+	
+	/**
+	 * Enables write-ahead logging, memory-mapped I/O and a larger page cache. When WAL is not
+	 *  supported the database keeps using the rollback journal with the default settings.
+	 */
+	@SuppressLint("NewApi")
+	private void configureWriteAheadLogging(SQLiteDatabase db) {
+		boolean enabled = false;
+		
+		if (Build.VERSION.SDK_INT >= 11) { //Build.VERSION_CODES.HONEYCOMB
+			try {
+				enabled = db.enableWriteAheadLogging();
+			} catch (final Throwable t) {
+				if (Utils.DEBUG) { t.printStackTrace(); }
+			}
+		}
+		
+		if (Utils.DEBUG) { Log.i(TAG, "EventStorage write-ahead logging " + (enabled ? "enabled" : "not supported")); }
+		
+		if (enabled) {
+			try {
+				//Without a rollback journal NORMAL only syncs at checkpoints, and is still safe from corruption
+				db.execSQL("PRAGMA synchronous = NORMAL;");
+				db.execSQL("PRAGMA cache_size = " + WAL_CACHE_PAGES + ";");
+				
+				//Returns the new size, so it can't be executed with execSQL. Ignored before SQLite 3.7.17.
+				//The cursor only executes the statement when it is read.
+				Cursor cursor = db.rawQuery("PRAGMA mmap_size = " + WAL_MMAP_SIZE + ";", null);
+				if (cursor != null) {
+					final long mmapSize = (cursor.moveToFirst() ? cursor.getLong(0) : 0);
+					cursor.close();
+					
+					if (Utils.DEBUG) { Log.i(TAG, "EventStorage mmap_size " + mmapSize); }
+				}
+			} catch (final SQLException se) {
+				if (Utils.DEBUG) { se.printStackTrace(); }
+			}
+		}
+	}
+	
+	@Override
+	public synchronized void close() {
+		if (Utils.DEBUG) { Log.i(TAG, "EventStorage.close()"); }
+		
+		if (this.database != null) {
+			this.insertEventStatement.close();
+			this.updateParametersStatement.close();
+			this.updateRetryStateStatement.close();
+			this.insertDeadEventStatement.close();
+			this.trimDeadEventsStatement.close();
+			this.deleteEventsStatement.close();
+			this.deleteParametersStatement.close();
+			this.deleteLaneEventsStatement.close();
+			this.deleteLaneParametersStatement.close();
+			this.database = null;
+		}
+		
+		super.close();
+	}
+	
+	/**
+	 * A page of the events that match the where clause, joined with the parameter rows of
+	 *  events stored before schema version 4
+	 */
+	private static String pageQuery(String where) {
+		return "SELECT e." + COLUMN_EVENT_ID + ", e." + COLUMN_EVENT_NAME + ", e." + COLUMN_EVENT_TIMESTAMP + ", "
+			+ "e." + COLUMN_EVENT_BUNDLE_ID + ", e." + COLUMN_EVENT_APPVERSION + ", e." + COLUMN_EVENT_SDKVERSION + ", "
+			+ "e." + COLUMN_EVENT_POSTDATA + ", e." + COLUMN_EVENT_PARAMETERS + ", e." + COLUMN_EVENT_CHECKSUM + ", "
+			+ "e." + COLUMN_EVENT_LANE + ", e." + COLUMN_EVENT_ATTEMPTS + ", e." + COLUMN_EVENT_NEXT_ATTEMPT + ", "
+			+ "e." + COLUMN_EVENT_CHECKSUM_IDENTITY + ", "
+			+ "p." + COLUMN_EVENT_PARAMETERS_KEY + ", p." + COLUMN_EVENT_PARAMETERS_VALUE + " "
+			+ "FROM (SELECT * FROM " + TABLE_EVENTS + " WHERE " + where + " "
+			+ "ORDER BY " + COLUMN_EVENT_ID + " LIMIT ?) e "
+			+ "LEFT JOIN " + TABLE_EVENT_PARAMETERS + " p ON p." + COLUMN_EVENT_PARAMETERS_EVENT_ID + " = e." + COLUMN_EVENT_ID + " "
+			+ "ORDER BY e." + COLUMN_EVENT_ID + ";";
+	}
+	
+	private static void bindString(SQLiteStatement statement, int index, String value) {
+		if (value != null) {
+			statement.bindString(index, value);
+		} else {
+			statement.bindNull(index);
+		}
+	}
+	
+	private static void bindBlob(SQLiteStatement statement, int index, byte[] value) {
+		if (value != null) {
+			statement.bindBlob(index, value);
+		} else {
+			statement.bindNull(index);
+		}
+	}
+	
+	/**
+	 * Stores the events in a single transaction. If that fails, the events are
+	 *  stored one by one so a single invalid event does not discard the others.
+	 *
+	 * @return true if all events were stored
+	 */
+	public boolean storeEvents(List<Event> events) {
+		if (Utils.DEBUG) { Log.i(TAG, "EventStorage.storeEvents(" + events.size() + ")"); }
+		
+		if (events.size() > 1 && this.storeEventsTransaction(events)) {
+			return true;
+		}
+		
+		boolean result = true;
+		for (Event event : events) {
+			List<Event> single = new ArrayList<Event>(1);
+			single.add(event);
+			
+			result &= this.storeEventsTransaction(single);
+		}
+		
+		return result;
+	}
+	
+	private boolean storeEventsTransaction(List<Event> events) {
+		//Assume failure
+		boolean result = false;
+		
+		SQLiteDatabase database = this.open();
+		
+		if (database != null) {
+			long[] eventIDs = new long[events.size()];
+			
+			database.beginTransaction();
+			try {
+				//Assume success until an insert fails
+				result = true;
+				
+				for (int i = 0; i < eventIDs.length && result == true; i++) {
+					eventIDs[i] = this.insertEvent(events.get(i));
+					result = (eventIDs[i] != -1);
+				}
+				
+				if (result == true) {
+					//All went well, set the transaction as successful
+					database.setTransactionSuccessful();
+				}
+			} catch (final SQLException se) {
+				if (Utils.DEBUG) { se.printStackTrace(); }
+				result = false;
+			} finally {
+				//End the transaction
+				database.endTransaction();
+			}
+			
+			if (result == true) {
+				//Set the IDs to the events once they are committed
+				for (int i = 0; i < eventIDs.length; i++) {
+					events.get(i).setId(eventIDs[i]);
+				}
+			}
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Inserts the event and its parameters, must be called within a transaction
+	 *
+	 * @return the ID of the event, or -1 if an insert failed
+	 */
+	private long insertEvent(Event event) {
+		if (Utils.DEBUG) { Log.i(TAG, "EventStorage.insertEvent(" + event.name + ")"); }
+		
+		bindString(this.insertEventStatement, 1, event.name);
+		this.insertEventStatement.bindLong(2, event.timestamp);
+		bindString(this.insertEventStatement, 3, event.bundleID);
+		bindString(this.insertEventStatement, 4, event.appVersion);
+		bindString(this.insertEventStatement, 5, event.sdkVersion);
+		bindString(this.insertEventStatement, 6, event.postData);
+		
+		try {
+			bindBlob(this.insertEventStatement, 7, EventCodec.encodeParams(event.params));
+		} catch (final IOException ioe) {
+			//The parameters could not be encoded
+			if (Utils.DEBUG) { ioe.printStackTrace(); }
+			return -1;
+		}
+		bindString(this.insertEventStatement, 8, event.getChecksum());
+		this.insertEventStatement.bindLong(9, event.lane);
+		bindString(this.insertEventStatement, 10, event.getChecksumIdentity());
+		
+		return this.insertEventStatement.executeInsert();
+	}
+	
+	/**
+	 * Removes the events in a single transaction. When maxID is not -1 all stored events
+	 *  up to and including maxID are removed with a range delete, otherwise the events
+	 *  are removed by ID.
+	 */
+	public boolean removeEvents(List<Event> events, int lane, long maxID) {
+		if (Utils.DEBUG) { Log.i(TAG, "EventStorage.removeEvents(" + events.size() + ", " + lane + ", " + maxID + ")"); }
+		
+		//Assume failure
+		boolean result = false;
+		
+		SQLiteDatabase database = this.open();
+		
+		if (database != null) {
+			database.beginTransaction();
+			try {
+				if (maxID != -1 && lane != ALL_LANES) {
+					//Delete the parameters and the events of the lane up to maxID
+					this.deleteLaneParametersStatement.bindLong(1, lane);
+					this.deleteLaneParametersStatement.bindLong(2, maxID);
+					this.deleteLaneParametersStatement.execute();
+					
+					this.deleteLaneEventsStatement.bindLong(1, lane);
+					this.deleteLaneEventsStatement.bindLong(2, maxID);
+					this.deleteLaneEventsStatement.execute();
+				} else if (maxID != -1) {
+					//Delete the events and their parameters up to maxID
+					this.deleteEventsStatement.bindLong(1, maxID);
+					this.deleteEventsStatement.execute();
+					
+					this.deleteParametersStatement.bindLong(1, maxID);
+					this.deleteParametersStatement.execute();
+				} else {
+					//Delete the events and their parameters by ID, in chunks to limit the statement size
+					for (int start = 0; start < events.size(); start += MAX_DELETE_IDS) {
+						StringBuilder ids = new StringBuilder();
+						for (int i = start; i < Math.min(start + MAX_DELETE_IDS, events.size()); i++) {
+							if (ids.length() > 0) {
+								ids.append(',');
+							}
+							ids.append(events.get(i).id);
+						}
+						
+						database.execSQL("DELETE FROM " + TABLE_EVENTS + " WHERE " + COLUMN_EVENT_ID + " IN (" + ids + ");");
+						database.execSQL("DELETE FROM " + TABLE_EVENT_PARAMETERS + " WHERE " + COLUMN_EVENT_PARAMETERS_EVENT_ID + " IN (" + ids + ");");
+					}
+				}
+				
+				//All went well, set the transaction as successful
+				database.setTransactionSuccessful();
+				
+				result = true;
+			} catch (SQLException se) {
+				if (Utils.DEBUG) { se.printStackTrace(); }
+			} finally {
+				database.endTransaction();
+			}
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Returns at most limit stored events with an ID larger than afterID, ordered by ID.
+	 * The events and their parameters are read with a single query.
+	 */
+	public ArrayList<Event> getEvents(int lane, long afterID, int limit) {
+		if (Utils.DEBUG) { Log.i(TAG, "EventStorage.getEvents(" + lane + ", " + afterID + ", " + limit + ")"); }
+		ArrayList<Event> events = new ArrayList<Event>();
+		
+		SQLiteDatabase database = this.open();
+		if (database == null) {
+			//Let the caller know the events could not be read, instead of returning an empty queue
+			throw new SQLiteException("Could not open " + DATABASE_NAME);
+		}
+
+		Cursor cursor;
+		if (lane != ALL_LANES) {
+			final String[] selectionArgs = { Integer.toString(lane), Long.toString(afterID), Integer.toString(limit) };
+			cursor = database.rawQuery(EVENTS_LANE_PAGE_QUERY, selectionArgs);
+		} else {
+			final String[] selectionArgs = { Long.toString(afterID), Integer.toString(limit) };
+			cursor = database.rawQuery(EVENTS_PAGE_QUERY, selectionArgs);
+		}
+		if (cursor != null) {
+			cursor.moveToFirst();
+			
+			long eventID = -1;
+			String name = null;
+			long timestamp = 0;
+			String bundleID = null;
+			String appVersion = null;
+			String sdkVersion = null;
+			String postData = null;
+			String checksum = null;
+			String checksumIdentity = null;
+			int eventLane = -1;
+			int attempts = 0;
+			long nextAttemptTime = 0;
+			Map<String, String> params = null;
+
+			//The rows are ordered by event, with one row per parameter
+			while (!cursor.isAfterLast()) {
+				final long rowEventID = cursor.getLong(0);
+				
+				if (rowEventID != eventID) {
+					if (eventID != -1) {
+						Event event = new Event(eventID, eventLane, name, params, postData, timestamp, bundleID, appVersion, sdkVersion, checksum, checksumIdentity);
+						event.setRetryState(attempts, nextAttemptTime);
+						events.add(event);
+					}
+					
+					eventID = rowEventID;
+					name = cursor.getString(1);
+					timestamp = cursor.getLong(2);
+					bundleID = cursor.getString(3);
+					appVersion = cursor.getString(4);
+					sdkVersion = cursor.getString(5);
+					postData = (cursor.isNull(6) ? null : cursor.getString(6));
+					checksum = (cursor.isNull(8) ? null : cursor.getString(8));
+					eventLane = cursor.getInt(9);
+					attempts = cursor.getInt(10);
+					nextAttemptTime = cursor.getLong(11);
+					checksumIdentity = (cursor.isNull(12) ? null : cursor.getString(12));
+					
+					if (!cursor.isNull(7)) {
+						params = decodeParams(cursor.getBlob(7));
+					} else if (checksum != null) {
+						//The checksum was calculated without parameters, keep it that way
+						params = null;
+					} else {
+						params = new HashMap<String, String>();
+					}
+				}
+				
+				//Events stored before schema version 4 have their parameters in separate rows
+				if (!cursor.isNull(13) && params != null) {
+					params.put(cursor.getString(13), cursor.getString(14));
+				}
+
+				cursor.moveToNext();
+			}
+			
+			if (eventID != -1) {
+				Event event = new Event(eventID, eventLane, name, params, postData, timestamp, bundleID, appVersion, sdkVersion, checksum, checksumIdentity);
+				event.setRetryState(attempts, nextAttemptTime);
+				events.add(event);
+			}
+
+			cursor.close();
+		}
+		
+		return events;
+	}
+	
+	/**
+	 * Stores the retry state of the events in a single transaction
+	 */
+	public boolean updateRetryState(List<Event> events) {
+		if (Utils.DEBUG) { Log.i(TAG, "EventStorage.updateRetryState(" + events.size() + ")"); }
+		
+		//Assume failure
+		boolean result = false;
+		
+		SQLiteDatabase database = this.open();
+		
+		if (database != null) {
+			database.beginTransaction();
+			try {
+				for (Event event : events) {
+					this.updateRetryStateStatement.bindLong(1, event.attempts);
+					this.updateRetryStateStatement.bindLong(2, event.nextAttemptTime);
+					this.updateRetryStateStatement.bindLong(3, event.id);
+					this.updateRetryStateStatement.execute();
+				}
+				
+				database.setTransactionSuccessful();
+				result = true;
+			} catch (final SQLException se) {
+				if (Utils.DEBUG) { se.printStackTrace(); }
+			} finally {
+				database.endTransaction();
+			}
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Copies the events to the dead events table and removes them from the events table,
+	 *  in a single transaction. Only the newest MAX_DEAD_EVENTS dead events are kept.
+	 */
+	public boolean deadLetterEvents(List<Event> events) {
+		if (Utils.DEBUG) { Log.i(TAG, "EventStorage.deadLetterEvents(" + events.size() + ")"); }
+		
+		//Assume failure
+		boolean result = false;
+		
+		SQLiteDatabase database = this.open();
+		
+		if (database != null) {
+			final long now = System.currentTimeMillis();
+			
+			database.beginTransaction();
+			try {
+				for (Event event : events) {
+					this.insertDeadEventStatement.bindLong(1, event.id);
+					bindString(this.insertDeadEventStatement, 2, event.name);
+					this.insertDeadEventStatement.bindLong(3, event.timestamp);
+					bindString(this.insertDeadEventStatement, 4, event.bundleID);
+					bindString(this.insertDeadEventStatement, 5, event.appVersion);
+					bindString(this.insertDeadEventStatement, 6, event.sdkVersion);
+					bindString(this.insertDeadEventStatement, 7, event.postData);
+					bindBlob(this.insertDeadEventStatement, 8, EventCodec.encodeParams(event.params));
+					bindString(this.insertDeadEventStatement, 9, event.getChecksum());
+					this.insertDeadEventStatement.bindLong(10, event.lane);
+					this.insertDeadEventStatement.bindLong(11, event.attempts);
+					this.insertDeadEventStatement.bindLong(12, now);
+					this.insertDeadEventStatement.executeInsert();
+				}
+				
+				this.trimDeadEventsStatement.bindLong(1, MAX_DEAD_EVENTS);
+				this.trimDeadEventsStatement.execute();
+				
+				database.setTransactionSuccessful();
+				result = true;
+			} catch (final IOException ioe) {
+				if (Utils.DEBUG) { ioe.printStackTrace(); }
+			} catch (final SQLException se) {
+				if (Utils.DEBUG) { se.printStackTrace(); }
+			} finally {
+				database.endTransaction();
+			}
+		}
+		
+		//Remove the events from the events table, also when they could not be kept
+		return this.removeEvents(events, ALL_LANES, -1) && result;
+	}
+	
+	private static Map<String, String> decodeParams(byte[] data) {
+		Map<String, String> params = null;
+		
+		if (data != null) {
+			try {
+				params = EventCodec.decodeParams(data);
+			} catch (final IOException ioe) {
+				//Keep the event, without its unreadable parameters
+				if (Utils.DEBUG) { ioe.printStackTrace(); }
+			}
+		}
+		
+		return (params != null ? params : new HashMap<String, String>());
+	}
+	
+	/**
+	 * Moves the parameters of at most maxEvents events stored before schema version 4
+	 *  from the parameters table into the parameters column, in a single transaction.
+	 *  Called repeatedly so a large legacy table doesn't block startup.
+	 *
+	 * @return true if there are more parameters left to migrate
+	 */
+	boolean migrateParameters(int maxEvents) {
+		if (Utils.DEBUG) { Log.i(TAG, "EventStorage.migrateParameters(" + maxEvents + ")"); }
+		
+		SQLiteDatabase database = this.open();
+		if (database == null) {
+			return false;
+		}
+		
+		//The parameters of the lowest event IDs, ordered by event
+		final String[] selectionArgs = { Integer.toString(maxEvents) };
+		final LinkedHashMap<Long, Map<String, String>> events = new LinkedHashMap<Long, Map<String, String>>();
+		
+		Cursor cursor = database.rawQuery(LEGACY_PARAMETERS_QUERY, selectionArgs);
+		if (cursor != null) {
+			cursor.moveToFirst();
+			while (!cursor.isAfterLast()) {
+				final Long eventID = Long.valueOf(cursor.getLong(0));
+				
+				Map<String, String> params = events.get(eventID);
+				if (params == null) {
+					params = new HashMap<String, String>();
+					events.put(eventID, params);
+				}
+				params.put(cursor.getString(1), cursor.getString(2));
+				
+				cursor.moveToNext();
+			}
+			cursor.close();
+		}
+		
+		if (events.isEmpty()) {
+			return false;
+		}
+		
+		long maxID = -1;
+		boolean result = false;
+		
+		database.beginTransaction();
+		try {
+			for (Map.Entry<Long, Map<String, String>> entry : events.entrySet()) {
+				maxID = entry.getKey().longValue();
+				
+				bindBlob(this.updateParametersStatement, 1, EventCodec.encodeParams(entry.getValue()));
+				this.updateParametersStatement.bindLong(2, maxID);
+				this.updateParametersStatement.execute();
+			}
+			
+			//All remaining parameter rows up to maxID belong to the events above
+			this.deleteParametersStatement.bindLong(1, maxID);
+			this.deleteParametersStatement.execute();
+			
+			database.setTransactionSuccessful();
+			result = true;
+		} catch (final IOException ioe) {
+			if (Utils.DEBUG) { ioe.printStackTrace(); }
+		} catch (final SQLException sqle) {
+			if (Utils.DEBUG) { sqle.printStackTrace(); }
+		} finally {
+			database.endTransaction();
+		}
+		
+		return (result && events.size() >= maxEvents);
+	}
+}
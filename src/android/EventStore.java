@@ -0,0 +1,73 @@
+package com.distimo.sdk;
+
+/**
+ *  Copyright (c) 2012 Distimo. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.distimo.sdk.EventManager.Event;
+
+/**
+ * Persistent FIFO queues of events that still have to be sent, one per priority lane.
+ *  All methods are called from the EventManager's eventHandler thread.
+ */
+interface EventStore {
+	
+	/**
+	 * Lane argument for all lanes, see EventManager.LANE_*
+	 */
+	int ALL_LANES = -1;
+	
+	/**
+	 * Stores the events and sets their IDs. IDs increase in the order the events are stored.
+	 *
+	 * @return true if all events were stored
+	 */
+	boolean storeEvents(List<Event> events);
+	
+	/**
+	 * Removes the events. When maxID is not -1 all stored events of the lane up to and
+	 *  including maxID are removed.
+	 *
+	 * @return true if the events were removed
+	 */
+	boolean removeEvents(List<Event> events, int lane, long maxID);
+	
+	/**
+	 * Returns at most limit stored events of the lane with an ID larger than afterID, ordered by ID
+	 */
+	ArrayList<Event> getEvents(int lane, long afterID, int limit);
+	
+	/**
+	 * Stores the attempts and next attempt time of the events, see Event.setRetryState()
+	 *
+	 * @return true if the retry state of all events was stored
+	 */
+	boolean updateRetryState(List<Event> events);
+	
+	/**
+	 * Moves the events to the dead letter store, they will not be returned by getEvents() again
+	 *
+	 * @return true if the events were moved
+	 */
+	boolean deadLetterEvents(List<Event> events);
+	
+	/**
+	 * Releases the underlying resources
+	 */
+	void close();
+}
@@ -0,0 +1,248 @@
+package com.distimo.sdk;
+
+/**
+ *  Copyright (c) 2012 Distimo. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Hashed timer wheel for many deadlines, with O(1) schedule and cancel. Deadlines are
+ *  hashed into buckets of one tick each, a deadline further away than one rotation waits
+ *  a number of rounds in its bucket. The wheel only ticks while deadlines are scheduled.
+ *
+ * Deadlines are wall clock times, so they can be stored. Expired items are reported at
+ *  most one tick late. Not thread safe, all methods must be called on the handler's thread.
+ */
+final class HashedTimerWheel<T> {
+	
+	private final static String TAG					= "HashedTimerWheel";
+	
+	interface Listener<T> {
+		
+		/**
+		 * Called on the handler's thread with the items whose deadline passed
+		 */
+		void onExpired(List<T> items);
+	}
+	
+	private final Handler handler;
+	private final Listener<T> listener;
+	private final long tickDuration;
+	private final Timeout<T>[] buckets;
+	private final int mask;
+	private final HashMap<T, Timeout<T>> timeouts	= new HashMap<T, Timeout<T>>();
+	
+	//Tick n covers the deadlines up to startTime + n * tickDuration
+	private long startTime;
+	private long currentTick;
+	private boolean ticking							= false;
+	
+	private final Runnable tickRunnable = new Runnable() {
+		public void run() {
+			HashedTimerWheel.this.tick();
+		}
+	};
+	
+	/**
+	 * @param wheelSize the number of buckets, rounded up to a power of two
+	 */
+	@SuppressWarnings("unchecked")
+	HashedTimerWheel(Handler handler, long tickDuration, int wheelSize, Listener<T> listener) {
+		int size = 1;
+		while (size < wheelSize) {
+			size <<= 1;
+		}
+		
+		this.handler = handler;
+		this.listener = listener;
+		this.tickDuration = Math.max(1, tickDuration);
+		this.buckets = (Timeout<T>[]) new Timeout<?>[size];
+		this.mask = size - 1;
+	}
+	
+	/**
+	 * Schedules the item, replacing its previous deadline
+	 */
+	void schedule(T item, long deadline) {
+		this.cancel(item);
+		
+		final long now = System.currentTimeMillis();
+		
+		if (!this.ticking) {
+			//The wheel is empty, align the ticks to now
+			this.startTime = now;
+			this.currentTick = 0;
+			this.ticking = true;
+			this.handler.postDelayed(this.tickRunnable, this.tickDuration);
+		}
+		
+		//Round up, so the item never expires early
+		long ticks = (deadline - this.startTime + this.tickDuration - 1) / this.tickDuration;
+		if (ticks < this.currentTick) {
+			ticks = this.currentTick;
+		}
+		
+		final Timeout<T> timeout = new Timeout<T>(item, deadline, (int) (ticks & this.mask), (ticks - this.currentTick) / this.buckets.length);
+		this.link(timeout);
+		this.timeouts.put(item, timeout);
+	}
+	
+	/**
+	 * Removes the item from the wheel, if it was scheduled
+	 */
+	void cancel(T item) {
+		final Timeout<T> timeout = this.timeouts.remove(item);
+		if (timeout != null) {
+			this.unlink(timeout);
+		}
+	}
+	
+	/**
+	 * Removes all items and stops ticking
+	 */
+	void clear() {
+		for (int i = 0; i < this.buckets.length; i++) {
+			this.buckets[i] = null;
+		}
+		this.timeouts.clear();
+		
+		this.handler.removeCallbacks(this.tickRunnable);
+		this.ticking = false;
+	}
+	
+	int size() {
+		return this.timeouts.size();
+	}
+	
+	private void tick() {
+		final long now = System.currentTimeMillis();
+		final ArrayList<T> expired = new ArrayList<T>();
+		
+		final long elapsedTicks = (now - this.startTime) / this.tickDuration;
+		
+		if (elapsedTicks - this.currentTick > this.buckets.length || elapsedTicks < this.currentTick - 1) {
+			//The clock was changed, or the thread was not scheduled for a full rotation
+			this.rehash(now, expired);
+		} else {
+			while (this.currentTick <= elapsedTicks) {
+				this.expire(this.buckets[(int) (this.currentTick & this.mask)], expired);
+				this.currentTick++;
+			}
+		}
+		
+		if (Utils.DEBUG && !expired.isEmpty()) { Log.i(TAG, expired.size() + " item(s) expired, " + this.timeouts.size() + " left"); }
+		
+		if (this.timeouts.isEmpty()) {
+			this.ticking = false;
+		} else {
+			//The next tick, corrected for the time the previous ones were late
+			this.handler.postDelayed(this.tickRunnable, Math.max(1, this.startTime + this.currentTick * this.tickDuration - now));
+		}
+		
+		if (!expired.isEmpty()) {
+			this.listener.onExpired(expired);
+		}
+	}
+	
+	/**
+	 * Expires the items of the bucket that are in their last round
+	 */
+	private void expire(Timeout<T> timeout, List<T> expired) {
+		while (timeout != null) {
+			final Timeout<T> next = timeout.next;
+			
+			if (timeout.rounds <= 0) {
+				this.unlink(timeout);
+				this.timeouts.remove(timeout.item);
+				expired.add(timeout.item);
+			} else {
+				timeout.rounds--;
+			}
+			
+			timeout = next;
+		}
+	}
+	
+	/**
+	 * Expires the items whose deadline passed and schedules the others again from now
+	 */
+	private void rehash(long now, List<T> expired) {
+		if (Utils.DEBUG) { Log.w(TAG, "Rehashing " + this.timeouts.size() + " item(s)"); }
+		
+		final ArrayList<Timeout<T>> remaining = new ArrayList<Timeout<T>>(this.timeouts.values());
+		
+		for (int i = 0; i < this.buckets.length; i++) {
+			this.buckets[i] = null;
+		}
+		this.timeouts.clear();
+		this.startTime = now;
+		this.currentTick = 0;
+		
+		for (Timeout<T> timeout : remaining) {
+			if (timeout.deadline <= now) {
+				expired.add(timeout.item);
+			} else {
+				this.schedule(timeout.item, timeout.deadline);
+			}
+		}
+	}
+	
+	private void link(Timeout<T> timeout) {
+		final Timeout<T> head = this.buckets[timeout.bucket];
+		timeout.next = head;
+		if (head != null) {
+			head.previous = timeout;
+		}
+		this.buckets[timeout.bucket] = timeout;
+	}
+	
+	private void unlink(Timeout<T> timeout) {
+		if (timeout.previous != null) {
+			timeout.previous.next = timeout.next;
+		} else {
+			this.buckets[timeout.bucket] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.previous = timeout.previous;
+		}
+		timeout.previous = null;
+		timeout.next = null;
+	}
+	
+	// INTERNAL CLASSES //
+	
+	private static final class Timeout<T> {
+		
+		final T item;
+		final long deadline;
+		final int bucket;
+		long rounds;
+		Timeout<T> previous;
+		Timeout<T> next;
+		
+		Timeout(T item, long deadline, int bucket, long rounds) {
+			this.item = item;
+			this.deadline = deadline;
+			this.bucket = bucket;
+			this.rounds = rounds;
+		}
+	}
+}
@@ -0,0 +1,365 @@
+package com.distimo.sdk;
+
+/**
+ *  Copyright (c) 2012 Distimo. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Executes HTTP requests with connect, read and total timeouts. When the total timeout
+ *  passes the connection is disconnected, which aborts a stalled connect, write or read.
+ *
+ * Requests can optionally be hedged: when the first attempt has not finished after the
+ *  95th percentile of the recent request durations, a second attempt is started and the
+ *  attempt that finishes first is used. The other attempt is cancelled.
+ */
+final class HttpTransport {
+	
+	private final static String TAG					= "HttpTransport";
+	
+	private final static int MAX_HEDGE_THREADS		= 8;
+	private final static long KEEP_ALIVE			= 30;
+	private final static int LATENCY_SAMPLES		= 64;
+	private final static int MIN_LATENCY_SAMPLES	= 16;
+	private final static long MIN_HEDGE_DELAY		= 250;
+	
+	private static volatile int connectTimeout		= 15000;
+	private static volatile int readTimeout			= 30000;
+	private static volatile long totalTimeout		= 60000;
+	
+	//Durations of the recent successful requests, guarded by latencies
+	private final static long[] latencies			= new long[LATENCY_SAMPLES];
+	private static int latencyCount					= 0;
+	private static int latencyIndex					= 0;
+	
+	private static ScheduledThreadPoolExecutor watchdog;
+	private static ThreadPoolExecutor hedgeExecutor;
+	
+	/**
+	 * A request, executed once per attempt
+	 */
+	interface Request<T> {
+		
+		/**
+		 * Opens its connections with call.open(..), and disconnects them when it is done
+		 */
+		T execute(Call call) throws IOException;
+	}
+	
+	/**
+	 * Private constructor to prevent instantiation
+	 */
+	private HttpTransport() { }
+	
+	/**
+	 * Set the timeouts of the requests that are started after this call, in milliseconds
+	 *
+	 * @param connect the timeout to establish a connection
+	 * @param read the timeout to wait for data
+	 * @param total the timeout of the complete request, including all attempts
+	 */
+	static void setTimeouts(int connect, int read, long total) {
+		if (Utils.DEBUG) { Log.i(TAG, "setTimeouts(" + connect + ", " + read + ", " + total + ")"); }
+		
+		connectTimeout = Math.max(1000, connect);
+		readTimeout = Math.max(1000, read);
+		totalTimeout = Math.max(connectTimeout, total);
+	}
+	
+	/**
+	 * Executes the request on the current thread
+	 *
+	 * @param hedged true to start a second attempt when the first one is slow, only for requests
+	 *  that can safely be executed twice
+	 */
+	static <T> T execute(final Request<T> request, boolean hedged) throws IOException {
+		final long deadline = SystemClock.uptimeMillis() + totalTimeout;
+		final long hedgeDelay = (hedged ? getHedgeDelay() : -1);
+		
+		if (hedgeDelay >= 0) {
+			try {
+				return executeHedged(request, deadline, hedgeDelay);
+			} catch (final RejectedExecutionException ree) {
+				//Too many hedged requests, send this one as usual
+				if (Utils.DEBUG) { Log.w(TAG, "Hedge executor saturated"); }
+			}
+		}
+		
+		return executeAttempt(request, new Call(deadline));
+	}
+	
+	private static <T> T executeAttempt(Request<T> request, Call call) throws IOException {
+		final long start = SystemClock.uptimeMillis();
+		try {
+			final T result = request.execute(call);
+			
+			recordLatency(SystemClock.uptimeMillis() - start);
+			
+			return result;
+		} catch (final IOException ioe) {
+			if (call.isExpired()) {
+				throw new InterruptedIOException("Request timed out after " + totalTimeout + "ms");
+			}
+			throw ioe;
+		} finally {
+			call.cancel();
+		}
+	}
+	
+	private static <T> T executeHedged(final Request<T> request, long deadline, long hedgeDelay) throws IOException {
+		final ExecutorCompletionService<T> completionService = new ExecutorCompletionService<T>(getHedgeExecutor());
+		final ArrayList<Call> calls = new ArrayList<Call>(2);
+		final ArrayList<Future<T>> futures = new ArrayList<Future<T>>(2);
+		IOException failure = null;
+		
+		try {
+			futures.add(submitAttempt(completionService, request, deadline, calls));
+			
+			Future<T> done = completionService.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+			if (done == null) {
+				if (Utils.DEBUG) { Log.i(TAG, "No response after " + hedgeDelay + "ms, hedging"); }
+				
+				futures.add(submitAttempt(completionService, request, deadline, calls));
+			}
+			
+			int pending = futures.size();
+			while (pending > 0) {
+				if (done == null) {
+					//The watchdog cancels the attempts at the deadline, so this doesn't wait forever
+					done = completionService.take();
+				}
+				pending--;
+				
+				try {
+					return done.get();
+				} catch (final ExecutionException ee) {
+					//Wait for the other attempt, if there is one
+					failure = (ee.getCause() instanceof IOException ? (IOException) ee.getCause() : new IOException(String.valueOf(ee.getCause())));
+				}
+				done = null;
+			}
+		} catch (final InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			failure = new InterruptedIOException("Interrupted");
+		} finally {
+			//Cancel the attempt that lost
+			for (Call call : calls) {
+				call.cancel();
+			}
+			for (Future<T> future : futures) {
+				future.cancel(true);
+			}
+		}
+		
+		throw failure;
+	}
+	
+	private static <T> Future<T> submitAttempt(ExecutorCompletionService<T> completionService, final Request<T> request, long deadline, List<Call> calls) {
+		final Call call = new Call(deadline);
+		calls.add(call);
+		
+		return completionService.submit(new Callable<T>() {
+			public T call() throws IOException {
+				return executeAttempt(request, call);
+			}
+		});
+	}
+	
+	// -- Latency -- //
+	
+	private static void recordLatency(long latency) {
+		synchronized (latencies) {
+			latencies[latencyIndex] = latency;
+			latencyIndex = (latencyIndex + 1) % LATENCY_SAMPLES;
+			latencyCount = Math.min(latencyCount + 1, LATENCY_SAMPLES);
+		}
+	}
+	
+	/**
+	 * @return the 95th percentile of the recent request durations, or -1 if there are too few
+	 */
+	private static long getHedgeDelay() {
+		long[] samples;
+		synchronized (latencies) {
+			if (latencyCount < MIN_LATENCY_SAMPLES) {
+				return -1;
+			}
+			samples = new long[latencyCount];
+			System.arraycopy(latencies, 0, samples, 0, samples.length);
+		}
+		
+		Arrays.sort(samples);
+		
+		return Math.max(MIN_HEDGE_DELAY, samples[(samples.length * 95 - 1) / 100]);
+	}
+	
+	// -- Executors -- //
+	
+	private static synchronized ScheduledThreadPoolExecutor getWatchdog() {
+		if (watchdog == null) {
+			watchdog = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "DistimoSDK watchdog");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		
+		return watchdog;
+	}
+	
+	private static synchronized ThreadPoolExecutor getHedgeExecutor() {
+		if (hedgeExecutor == null) {
+			final ThreadFactory threadFactory = new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger(1);
+				
+				public Thread newThread(final Runnable r) {
+					return new Thread(new Runnable() {
+						public void run() {
+							Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+							r.run();
+						}
+					}, "DistimoSDK hedge #" + count.getAndIncrement());
+				}
+			};
+			
+			hedgeExecutor = new ThreadPoolExecutor(MAX_HEDGE_THREADS, MAX_HEDGE_THREADS, KEEP_ALIVE, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), threadFactory);
+			
+			if (Build.VERSION.SDK_INT >= 9) { //Build.VERSION_CODES.GINGERBREAD
+				//The threads are only needed while requests are hedged
+				hedgeExecutor.allowCoreThreadTimeOut(true);
+			}
+		}
+		
+		return hedgeExecutor;
+	}
+	
+	// INTERNAL CLASSES //
+	
+	/**
+	 * One attempt of a request. Disconnects its connections when it is cancelled or when
+	 *  the deadline passes.
+	 */
+	static final class Call {
+		
+		private final long deadline;
+		private final ArrayList<HttpURLConnection> connections	= new ArrayList<HttpURLConnection>(1);
+		private ScheduledFuture<?> timeout;
+		private boolean cancelled								= false;
+		private boolean expired									= false;
+		
+		Call(long deadline) {
+			this.deadline = deadline;
+		}
+		
+		/**
+		 * Opens a connection with the connect and read timeouts, limited by the deadline
+		 */
+		HttpURLConnection open(URL url) throws IOException {
+			final long remaining = this.deadline - SystemClock.uptimeMillis();
+			if (remaining <= 0) {
+				throw new InterruptedIOException("Deadline passed");
+			}
+			
+			final HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+			urlConnection.setConnectTimeout((int) Math.min(connectTimeout, remaining));
+			urlConnection.setReadTimeout((int) Math.min(readTimeout, remaining));
+			
+			synchronized (this) {
+				if (this.cancelled) {
+					throw new InterruptedIOException("Cancelled");
+				}
+				
+				this.connections.add(urlConnection);
+				
+				if (this.timeout == null) {
+					this.timeout = getWatchdog().schedule(new Runnable() {
+						public void run() {
+							if (Utils.DEBUG) { Log.w(TAG, "Deadline passed, cancelling the request"); }
+							
+							Call.this.expire();
+						}
+					}, remaining, TimeUnit.MILLISECONDS);
+				}
+			}
+			
+			return urlConnection;
+		}
+		
+		synchronized boolean isExpired() {
+			return this.expired;
+		}
+		
+		private void expire() {
+			synchronized (this) {
+				if (this.cancelled) {
+					return;
+				}
+				this.expired = true;
+			}
+			
+			this.cancel();
+		}
+		
+		/**
+		 * Disconnects the connections of the call, can be called from any thread
+		 */
+		void cancel() {
+			HttpURLConnection[] connections;
+			synchronized (this) {
+				if (this.cancelled) {
+					return;
+				}
+				this.cancelled = true;
+				
+				if (this.timeout != null) {
+					this.timeout.cancel(false);
+				}
+				
+				connections = this.connections.toArray(new HttpURLConnection[this.connections.size()]);
+			}
+			
+			for (HttpURLConnection urlConnection : connections) {
+				urlConnection.disconnect();
+			}
+		}
+	}
+}
@@ -0,0 +1,221 @@
+package com.distimo.sdk;
+
+/**
+ *  Copyright (c) 2012 Distimo. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import android.util.Log;
+
+/**
+ * Reusable MD5 hasher that encodes the appended text directly into a byte buffer,
+ *  without building intermediate Strings. Instances are not thread safe, use get()
+ *  for the instance of the current thread.
+ *
+ * The result is identical to Utils.md5(String) of the appended text, including the
+ *  way that method only hashes the first s.length() bytes of the UTF-8 encoding.
+ */
+final class Md5Hasher implements Appendable {
+	
+	private final static String TAG				= "Md5Hasher";
+	private final static char[] HEX_DIGITS		= "0123456789abcdef".toCharArray();
+	private final static int INITIAL_CAPACITY	= 512;
+	
+	private final static ThreadLocal<Md5Hasher> instances = new ThreadLocal<Md5Hasher>() {
+		@Override
+		protected Md5Hasher initialValue() {
+			return new Md5Hasher();
+		}
+	};
+	
+	private final MessageDigest digest;
+	private byte[] buffer	= new byte[INITIAL_CAPACITY];
+	private int length		= 0;
+	private int chars		= 0;
+	
+	private Md5Hasher() {
+		MessageDigest md5 = null;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (final NoSuchAlgorithmException nsae) {
+			if (Utils.DEBUG) { nsae.printStackTrace(); }
+		}
+		this.digest = md5;
+	}
+	
+	/**
+	 * @return the empty hasher of the current thread
+	 */
+	static Md5Hasher get() {
+		Md5Hasher result = instances.get();
+		result.reset();
+		return result;
+	}
+	
+	void reset() {
+		this.length = 0;
+		this.chars = 0;
+	}
+	
+	// -- Appendable -- //
+	
+	public Md5Hasher append(CharSequence s) {
+		if (s == null) {
+			s = "null";
+		}
+		
+		return this.append(s, 0, s.length());
+	}
+	
+	public Md5Hasher append(CharSequence s, int start, int end) {
+		if (s == null) {
+			s = "null";
+		}
+		
+		//At most 3 bytes per char, surrogate pairs take 4 bytes for 2 chars
+		this.ensureCapacity((end - start) * 3);
+		
+		byte[] data = this.buffer;
+		int position = this.length;
+		
+		for (int i = start; i < end; i++) {
+			final char c = s.charAt(i);
+			
+			if (c < 0x80) {
+				data[position++] = (byte) c;
+			} else if (c < 0x800) {
+				data[position++] = (byte) (0xc0 | (c >> 6));
+				data[position++] = (byte) (0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+				final int codePoint = Character.toCodePoint(c, s.charAt(++i));
+				data[position++] = (byte) (0xf0 | (codePoint >> 18));
+				data[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+				data[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+				data[position++] = (byte) (0x80 | (codePoint & 0x3f));
+			} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+				//Same replacement as String.getBytes() for a malformed surrogate
+				data[position++] = (byte) '?';
+			} else {
+				data[position++] = (byte) (0xe0 | (c >> 12));
+				data[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				data[position++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		
+		this.length = position;
+		this.chars += (end - start);
+		
+		return this;
+	}
+	
+	public Md5Hasher append(char c) {
+		if (c < 0x80) {
+			this.ensureCapacity(1);
+			this.buffer[this.length++] = (byte) c;
+			this.chars++;
+			return this;
+		}
+		
+		return this.append(String.valueOf(c));
+	}
+	
+	Md5Hasher append(long l) {
+		return this.append(Long.toString(l));
+	}
+	
+	/**
+	 * Appends the lowercase hex representation of the data
+	 */
+	Md5Hasher appendHex(byte[] data) {
+		this.ensureCapacity(data.length * 2);
+		
+		for (int i = 0; i < data.length; i++) {
+			this.buffer[this.length++] = (byte) HEX_DIGITS[(data[i] >> 4) & 0xf];
+			this.buffer[this.length++] = (byte) HEX_DIGITS[data[i] & 0xf];
+		}
+		this.chars += data.length * 2;
+		
+		return this;
+	}
+	
+	/**
+	 * Appends text that was encoded before, see toByteArray() and charCount()
+	 */
+	Md5Hasher appendEncoded(byte[] data, int chars) {
+		this.ensureCapacity(data.length);
+		
+		System.arraycopy(data, 0, this.buffer, this.length, data.length);
+		this.length += data.length;
+		this.chars += chars;
+		
+		return this;
+	}
+	
+	/**
+	 * @return the UTF-8 encoding of the appended text
+	 */
+	byte[] toByteArray() {
+		byte[] result = new byte[this.length];
+		System.arraycopy(this.buffer, 0, result, 0, this.length);
+		return result;
+	}
+	
+	/**
+	 * @return the number of chars of the appended text
+	 */
+	int charCount() {
+		return this.chars;
+	}
+	
+	// -- Digest -- //
+	
+	/**
+	 * Hashes the appended text and resets the hasher
+	 *
+	 * @return the MD5 hash, or an empty array if MD5 is not available
+	 */
+	byte[] digest() {
+		if (Utils.DEBUG) { Log.i(TAG, "digest()"); }
+		
+		byte[] result = new byte[0];
+		
+		if (this.digest != null) {
+			//Same as Utils.md5(String), which hashes s.length() bytes of s.getBytes()
+			this.digest.update(this.buffer, 0, Math.min(this.length, this.chars));
+			result = this.digest.digest();
+		}
+		
+		this.reset();
+		
+		return result;
+	}
+	
+	/**
+	 * @return the hex representation of digest()
+	 */
+	String hexDigest() {
+		return Utils.byteArrayToHexString(this.digest());
+	}
+	
+	private void ensureCapacity(int extra) {
+		if (this.length + extra > this.buffer.length) {
+			byte[] data = new byte[Math.max(this.buffer.length * 2, this.length + extra)];
+			System.arraycopy(this.buffer, 0, data, 0, this.length);
+			this.buffer = data;
+		}
+	}
+}
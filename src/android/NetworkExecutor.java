@@ -0,0 +1,103 @@
+package com.distimo.sdk;
+
+/**
+ *  Copyright (c) 2012 Distimo. All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Executor that runs all network requests of the SDK, so they don't queue behind
+ *  the AsyncTasks of the host application
+ */
+final class NetworkExecutor {
+
+	private final static String TAG				= "NetworkExecutor";
+
+	private final static int MAX_THREADS		= 4;
+	private final static int QUEUE_CAPACITY		= 64;
+	private final static long KEEP_ALIVE		= 30;
+
+	private static volatile int threadPriority	= Process.THREAD_PRIORITY_BACKGROUND;
+
+	private static ThreadPoolExecutor executor;
+
+	/**
+	 * Private constructor to prevent instantiation
+	 */
+	private NetworkExecutor() { }
+
+	/**
+	 * Set the priority of the network threads, one of the android.os.Process.THREAD_PRIORITY_* values.
+	 * Applies to requests that are started after this call.
+	 */
+	static void setThreadPriority(int priority) {
+		if (Utils.DEBUG) { Log.i(TAG, "setThreadPriority(" + priority + ")"); }
+
+		threadPriority = priority;
+	}
+
+	/**
+	 * Run the task on one of the network threads
+	 *
+	 * @return false if the queue is full and the task was not accepted
+	 */
+	static boolean execute(final Runnable task) {
+		try {
+			getExecutor().execute(new Runnable() {
+				public void run() {
+					Process.setThreadPriority(threadPriority);
+					task.run();
+				}
+			});
+		} catch (final RejectedExecutionException ree) {
+			if (Utils.DEBUG) { Log.w(TAG, "Queue full, rejected task"); }
+			return false;
+		}
+
+		return true;
+	}
+
+	private static synchronized ThreadPoolExecutor getExecutor() {
+		if (executor == null) {
+			final ThreadFactory threadFactory = new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger(1);
+
+				public Thread newThread(Runnable r) {
+					return new Thread(r, "DistimoSDK #" + count.getAndIncrement());
+				}
+			};
+
+			executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, KEEP_ALIVE, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY), threadFactory);
+
+			if (Build.VERSION.SDK_INT >= 9) { //Build.VERSION_CODES.GINGERBREAD
+				//Don't keep idle threads around
+				executor.allowCoreThreadTimeOut(true);
+			}
+		}
+
+		return executor;
+	}
+}
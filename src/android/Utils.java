@@ -39,6 +39,7 @@ final class Utils {
 	public final static boolean DEBUG = false;
 	
 	private final static char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	private final static char[] URL_HEX_DIGITS = "0123456789ABCDEF".toCharArray();
 	private final static String TAG = "Utils";
 	
 	// -- Key/value -- //
@@ -84,6 +85,57 @@ final class Utils {
 		return result;
 	}
 	
+	// -- URL encoding -- //
+	
+	/**
+	 * Appends s in the application/x-www-form-urlencoded format, the same as URLEncoder.encode(s, "UTF-8").
+	 * When twice is true the result is encoded again, as if URLEncoder.encode was called on the result.
+	 */
+	static void urlEncode(Appendable out, CharSequence s, boolean twice) throws IOException {
+		final int length = s.length();
+		
+		for (int i = 0; i < length; i++) {
+			final char c = s.charAt(i);
+			
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+					|| c == '.' || c == '-' || c == '*' || c == '_') {
+				out.append(c);
+			} else if (c == ' ') {
+				//The '+' of a space is encoded as %2B the second time
+				if (twice) {
+					out.append("%2B");
+				} else {
+					out.append('+');
+				}
+			} else if (c < 0x80) {
+				appendUrlEncodedByte(out, c, twice);
+			} else if (c < 0x800) {
+				appendUrlEncodedByte(out, 0xc0 | (c >> 6), twice);
+				appendUrlEncodedByte(out, 0x80 | (c & 0x3f), twice);
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+				final int codePoint = Character.toCodePoint(c, s.charAt(++i));
+				appendUrlEncodedByte(out, 0xf0 | (codePoint >> 18), twice);
+				appendUrlEncodedByte(out, 0x80 | ((codePoint >> 12) & 0x3f), twice);
+				appendUrlEncodedByte(out, 0x80 | ((codePoint >> 6) & 0x3f), twice);
+				appendUrlEncodedByte(out, 0x80 | (codePoint & 0x3f), twice);
+			} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+				//URLEncoder replaces a malformed surrogate with '?'
+				appendUrlEncodedByte(out, '?', twice);
+			} else {
+				appendUrlEncodedByte(out, 0xe0 | (c >> 12), twice);
+				appendUrlEncodedByte(out, 0x80 | ((c >> 6) & 0x3f), twice);
+				appendUrlEncodedByte(out, 0x80 | (c & 0x3f), twice);
+			}
+		}
+	}
+	
+	private static void appendUrlEncodedByte(Appendable out, int b, boolean twice) throws IOException {
+		//The '%' is encoded as %25 the second time, the hex digits stay the same
+		out.append(twice ? "%25" : "%");
+		out.append(URL_HEX_DIGITS[(b >> 4) & 0xf]);
+		out.append(URL_HEX_DIGITS[b & 0xf]);
+	}
+	
 	// -- Hex -- //
 	
 	static byte[] hexStringToByteArray(String s) {